@@ -78,7 +78,7 @@ public class ActivityAddFriend extends ActivitySendIdentityByNfc implements View
             try {
                 Robohash.setRobohashImage(this, mFriendAvatarImage, true, mReceivedFriend.mPublicIdentity);
                 mFriendNicknameText.setText(mReceivedFriend.mPublicIdentity.mNickname);
-                mFriendFingerprintText.setText(Utils.formatFingerprint(mReceivedFriend.mPublicIdentity.getFingerprint()));
+                mFriendFingerprintText.setText(mReceivedFriend.mPublicIdentity.getFormattedFingerprint());
                 return;
             } catch (Utils.ApplicationError e) {
                 Log.addEntry(LOG_TAG, "failed to show friend");
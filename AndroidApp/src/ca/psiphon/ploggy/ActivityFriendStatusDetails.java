@@ -182,7 +182,7 @@ public class ActivityFriendStatusDetails extends ActivitySendIdentityByNfc {
 
             Robohash.setRobohashImage(this, mAvatarImage, true, friend.mPublicIdentity);
             mNicknameText.setText(friend.mPublicIdentity.mNickname);
-            mFingerprintText.setText(Utils.formatFingerprint(friend.mPublicIdentity.getFingerprint()));
+            mFingerprintText.setText(friend.mPublicIdentity.getFormattedFingerprint());
 
             int messageVisibility = (friendStatus.mMessages.size() > 0) ? View.VISIBLE : View.GONE;
             mMessageLabel.setVisibility(messageVisibility);
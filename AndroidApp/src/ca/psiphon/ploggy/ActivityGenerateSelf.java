@@ -92,7 +92,7 @@ public class ActivityGenerateSelf extends ActivitySendIdentityByNfc implements V
             } else {
                 Robohash.setRobohashImage(this, mAvatarImage, false, null);
             }
-            mFingerprintText.setText(Utils.formatFingerprint(publicIdentity.getFingerprint()));
+            mFingerprintText.setText(publicIdentity.getFormattedFingerprint());
         } catch (Utils.ApplicationError e) {
             Log.addEntry(LOG_TAG, "failed to show self");
         }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * Monitor battery state and select the Engine power mode.
+ *
+ * Battery saver mode is on when enabled in preferences, the device isn't charging, and
+ * the battery level is at or below the battery saver level preference. Mode changes are
+ * posted as UpdatedPowerMode events. Battery state comes from the sticky battery changed
+ * broadcast, so the current state is known as soon as the monitor starts.
+ */
+public class BatteryMonitor extends BroadcastReceiver {
+
+    private static final String LOG_TAG = "Battery Monitor";
+
+    // Once on, battery saver mode stays on until the level is this far above the
+    // threshold, so the mode doesn't flip back and forth on small level changes
+    private static final int BATTERY_SAVER_HYSTERESIS_IN_PERCENT = 2;
+
+    Engine mEngine;
+    boolean mStarted;
+    int mLevelInPercent;
+    boolean mCharging;
+    boolean mBatterySaver;
+
+    BatteryMonitor(Engine engine) {
+        mEngine = engine;
+        mLevelInPercent = -1;
+    }
+
+    public void start() {
+        // Call on the main thread
+        Intent batteryStatus = mEngine.getContext().registerReceiver(
+                this, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mStarted = true;
+        if (batteryStatus != null) {
+            onReceive(mEngine.getContext(), batteryStatus);
+        }
+    }
+
+    public void stop() {
+        if (mStarted) {
+            mEngine.getContext().unregisterReceiver(this);
+            mStarted = false;
+        }
+        mBatterySaver = false;
+    }
+
+    public boolean isBatterySaver() {
+        return mBatterySaver;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        mLevelInPercent = (level >= 0 && scale > 0) ? (level*100)/scale : -1;
+        mCharging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL
+                || intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        update();
+    }
+
+    public void update() {
+        // Also called by the Engine when battery saver preferences change
+        if (!mStarted) {
+            return;
+        }
+        boolean batterySaver = false;
+        try {
+            if (mEngine.getBooleanPreference(R.string.preferenceEnableBatterySaver)
+                    && !mCharging && mLevelInPercent != -1) {
+                int threshold = mEngine.getIntPreference(R.string.preferenceBatterySaverLevel);
+                if (mBatterySaver) {
+                    threshold += BATTERY_SAVER_HYSTERESIS_IN_PERCENT;
+                }
+                batterySaver = mLevelInPercent <= threshold;
+            }
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to read battery saver preferences");
+            return;
+        }
+        if (batterySaver != mBatterySaver) {
+            mBatterySaver = batterySaver;
+            Log.addEntry(
+                    LOG_TAG,
+                    "battery saver " + (batterySaver ? "on" : "off") +
+                    " at battery level " + Integer.toString(mLevelInPercent) + "%");
+            Events.post(new Events.UpdatedPowerMode(batterySaver));
+        }
+    }
+}
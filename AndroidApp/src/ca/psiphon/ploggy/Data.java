@@ -19,31 +19,46 @@
 
 package ca.psiphon.ploggy;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.LruCache;
 
 /**
  * Data persistence for self, friends, and status.
  *
- * On disk, data is represented as JSON stored in individual files. In memory, data is represented
- * as immutable POJOs which are thread-safe and easily serializable. Self and friend metadata, including
- * identity, and recent status data are kept in-memory. Large data such as map tiles will be left on
- * disk with perhaps an in-memory cache.
+ * On disk, data is kept by a DataStore: either JSON stored in individual files (JsonFileDataStore)
+ * or SQLite tables (SqliteDataStore). The store is selected at startup, and existing data is migrated
+ * when the selection changes. In memory, data is represented as immutable POJOs which are thread-safe
+ * and easily serializable. Self and friend metadata, including identity, and recent status data are
+ * kept in-memory. Large data such as map tiles will be left on disk with perhaps an in-memory cache.
  *
- * Simple consistency is provided: data changes are first written to a commit file, then the commit
- * file replaces the data file. In memory structures are replaced only after the file write succeeds.
+ * In memory structures are replaced only after the store write succeeds. Writers are serialized;
+ * readers take no lock and see the most recently published in-memory structures, so they don't
+ * wait on writers' disk I/O.
+ *
+ * Statuses carry only the most recent messages; the full message history is kept by the store.
  *
  * If local security is added to the scope of Ploggy, here's where we'd interface with SQLCipher and/or
  * KeyChain, etc.
@@ -79,6 +94,8 @@ public class Data {
         public final String mId;
         public final Identity.PublicIdentity mPublicIdentity;
         public final Date mAddedTimestamp;
+        // As loaded or last written; use getFriendLastSentStatusTimestamp and
+        // getFriendLastReceivedStatusTimestamp for current values
         public final Date mLastSentStatusTimestamp;
         public final Date mLastReceivedStatusTimestamp;
 
@@ -92,12 +109,48 @@ public class Data {
                 Date addedTimestamp,
                 Date lastSentStatusTimestamp,
                 Date lastReceivedStatusTimestamp) throws Utils.ApplicationError {
-            mId = Utils.formatFingerprint(publicIdentity.getFingerprint());
+            mId = publicIdentity.getFormattedFingerprint();
+            mPublicIdentity = publicIdentity;
+            mAddedTimestamp = addedTimestamp;
+            mLastSentStatusTimestamp = lastSentStatusTimestamp;
+            mLastReceivedStatusTimestamp = lastReceivedStatusTimestamp;
+        }
+
+        // With a stored id, as read by JsonAdapters; the id isn't recomputed from the fingerprint
+        Friend(
+                String id,
+                Identity.PublicIdentity publicIdentity,
+                Date addedTimestamp,
+                Date lastSentStatusTimestamp,
+                Date lastReceivedStatusTimestamp) {
+            mId = id;
             mPublicIdentity = publicIdentity;
             mAddedTimestamp = addedTimestamp;
             mLastSentStatusTimestamp = lastSentStatusTimestamp;
             mLastReceivedStatusTimestamp = lastReceivedStatusTimestamp;
         }
+
+        // Copy with new timestamps; reuses the fingerprint-derived id instead of recomputing it
+        private Friend(
+                Friend friend,
+                Date lastSentStatusTimestamp,
+                Date lastReceivedStatusTimestamp) {
+            mId = friend.mId;
+            mPublicIdentity = friend.mPublicIdentity;
+            mAddedTimestamp = friend.mAddedTimestamp;
+            mLastSentStatusTimestamp = lastSentStatusTimestamp;
+            mLastReceivedStatusTimestamp = lastReceivedStatusTimestamp;
+        }
+    }
+
+    private static class FriendTimestamps {
+        final Date mLastSentStatusTimestamp;
+        final Date mLastReceivedStatusTimestamp;
+
+        FriendTimestamps(Date lastSentStatusTimestamp, Date lastReceivedStatusTimestamp) {
+            mLastSentStatusTimestamp = lastSentStatusTimestamp;
+            mLastReceivedStatusTimestamp = lastReceivedStatusTimestamp;
+        }
     }
 
     public class FriendComparator implements Comparator<Friend> {
@@ -140,11 +193,24 @@ public class Data {
     public class AnnotatedMessageComparator implements Comparator<AnnotatedMessage> {
         @Override
         public int compare(AnnotatedMessage a, AnnotatedMessage b) {
-            // Descending time order
+            // Descending time order. Ties are broken by author and content so that this is a
+            // total order, as required for the sorted set timeline: only messages with the
+            // same author, timestamp and content compare as equal.
             int result = b.mMessage.mTimestamp.compareTo(a.mMessage.mTimestamp);
             if (result == 0) {
                 result = a.mPublicIdentity.mNickname.compareToIgnoreCase(b.mPublicIdentity.mNickname);
             }
+            if (result == 0) {
+                // Self (null friend ID) first
+                if (a.mFriendId == null || b.mFriendId == null) {
+                    result = (a.mFriendId == null ? 0 : 1) - (b.mFriendId == null ? 0 : 1);
+                } else {
+                    result = a.mFriendId.compareTo(b.mFriendId);
+                }
+            }
+            if (result == 0) {
+                result = a.mMessage.mContent.compareTo(b.mMessage.mContent);
+            }
             return result;
         }
     }
@@ -241,6 +307,43 @@ public class Data {
         }
     }
 
+    // Data sets with change versions; see getVersion
+    public enum Collection {SELF, SELF_STATUS, FRIENDS, FRIEND_TIMESTAMPS, FRIEND_STATUSES, NEW_MESSAGES, ALL_MESSAGES, LOCAL_RESOURCES, DOWNLOADS}
+
+    public static class Changes {
+        public final long mVersion;
+        public final Set<Collection> mCollections;
+        public final Set<String> mFriendIds;
+
+        public Changes(
+                long version,
+                Set<Collection> collections,
+                Set<String> friendIds) {
+            mVersion = version;
+            mCollections = collections;
+            mFriendIds = friendIds;
+        }
+    }
+
+    public static class EncodedStatus {
+        // The self status version the bytes were encoded from, or a later one
+        public final long mVersion;
+        public final String mMimeType;
+        public final boolean mCompressed;
+        public final byte[] mBytes;
+
+        public EncodedStatus(
+                long version,
+                String mimeType,
+                boolean compressed,
+                byte[] bytes) {
+            mVersion = version;
+            mMimeType = mimeType;
+            mCompressed = compressed;
+            mBytes = bytes;
+        }
+    }
+
     // TODO: fix -- having these errors as subclasses of Utils.ApplicationError with
     // no log can result in silent failures when functions only handle the base class
 
@@ -270,6 +373,13 @@ public class Data {
        }
        return instance;
     }
+    private Data() {
+    }
+    // A separate instance over the given store, for benchmarks; it posts no events, so
+    // the Engine and UI never see its data
+    Data(DataStore store) {
+        mStore = store;
+    }
     @Override
     public Object clone() throws CloneNotSupportedException {
         throw new CloneNotSupportedException();
@@ -282,78 +392,449 @@ public class Data {
     // ...eventually use file system for map tiles etc.
 
     private static final String DATA_DIRECTORY = "ploggyData";
-    private static final String SELF_FILENAME = "self.json";
-    private static final String SELF_STATUS_FILENAME = "selfStatus.json";
-    private static final String FRIENDS_FILENAME = "friends.json";
-    private static final String FRIEND_STATUS_FILENAME_FORMAT_STRING = "%s-friendStatus.json";
-    private static final String LOCAL_RESOURCES_FILENAME = "localResources.json";
-    private static final String DOWNLOADS_FILENAME = "downloads.json";
-    private static final String COMMIT_FILENAME_SUFFIX = ".commit";
-
-    Self mSelf;
-    Status mSelfStatus;
-    Location mPrivateSelfLocation;
-    List<Friend> mFriends;
-    HashMap<String, Status> mFriendStatuses;
-    List<AnnotatedMessage> mNewMessages;
-    List<AnnotatedMessage> mAllMessages;
-    List<LocalResource> mLocalResources;
-    List<Download> mDownloads;
+    private static final String DATABASE_NAME = "ploggyData.db";
+    // Values of the preferenceDataStore preference, which isn't shown in the settings UI
+    private static final String DATA_STORE_JSON_FILE = "json";
+    private static final String DATA_STORE_SQLITE = "sqlite";
+    // Message history author for self; friends are keyed by friend ID
+    private static final String SELF_MESSAGE_HISTORY_AUTHOR = "self";
+
+    private static final int FRIEND_STATUS_CACHE_SIZE = 256;
+    private static final int WARM_UP_THREAD_POOL_SIZE = 4;
+    // Cached in place of a status when a friend has none, as LruCache doesn't store null
+    private static final Status NO_FRIEND_STATUS = new Status(null, null);
+
+    // Friend list and its indexes. Like the other data sets below, it's never modified
+    // once published: writers update a copy and then replace the reference.
+    private static class Friends {
+        final List<Friend> mList;
+        final HashMap<String, Friend> mById;
+        final HashMap<String, String> mIdsByCertificateDigest;
+        final HashMap<String, String> mIdsByNickname;
+
+        Friends() {
+            mList = new ArrayList<Friend>();
+            mById = new HashMap<String, Friend>();
+            mIdsByCertificateDigest = new HashMap<String, String>();
+            mIdsByNickname = new HashMap<String, String>();
+        }
+
+        Friends(Friends friends) {
+            mList = new ArrayList<Friend>(friends.mList);
+            mById = new HashMap<String, Friend>(friends.mById);
+            mIdsByCertificateDigest = new HashMap<String, String>(friends.mIdsByCertificateDigest);
+            mIdsByNickname = new HashMap<String, String>(friends.mIdsByNickname);
+        }
+    }
+
+    // In-progress downloads, indexed by download key and queued per friend in the order added.
+    // Queues are copied, not modified, by writers.
+    private static class DownloadQueues {
+        final LinkedHashMap<String, Download> mByKey;
+        final HashMap<String, List<Download>> mQueuesByFriendId;
+
+        DownloadQueues() {
+            mByKey = new LinkedHashMap<String, Download>();
+            mQueuesByFriendId = new HashMap<String, List<Download>>();
+        }
+
+        DownloadQueues(DownloadQueues downloads) {
+            mByKey = new LinkedHashMap<String, Download>(downloads.mByKey);
+            mQueuesByFriendId = new HashMap<String, List<Download>>(downloads.mQueuesByFriendId);
+        }
+    }
+
+    private static class SelfStatusEncodings {
+        final long mVersion;
+        // By mime type and compression
+        final ConcurrentHashMap<String, EncodedStatus> mEncodedStatuses;
+
+        SelfStatusEncodings(long version) {
+            mVersion = version;
+            mEncodedStatuses = new ConcurrentHashMap<String, EncodedStatus>();
+        }
+    }
+
+    // Concurrency: readers don't take the Data monitor. Each data set is an immutable
+    // snapshot published through a volatile field. Writers are synchronized, which
+    // serializes them; a writer persists its change and then publishes a modified copy
+    // of the snapshot (copy-on-write), so readers never wait on disk I/O. Lazy loading
+    // also happens under the monitor.
+
+    volatile DataStore mStore;
+    volatile Self mSelf;
+    volatile Status mSelfStatus;
+    volatile Location mPrivateSelfLocation;
+    // Encodings of mSelfStatus, for one self status version; see getEncodedSelfStatus
+    volatile SelfStatusEncodings mSelfStatusEncodings;
+    volatile Friends mFriends;
+    // Last sent/received timestamps updated since friends were loaded. These change on every
+    // push, pull and served request, so they're kept apart from the Friends snapshot, whose
+    // Friend timestamps are as loaded or last written, and aren't republished with it.
+    final ConcurrentHashMap<String, FriendTimestamps> mFriendTimestamps = new ConcurrentHashMap<String, FriendTimestamps>();
+    // Friends whose in-memory last sent/received timestamps are newer than what's persisted
+    HashSet<String> mFriendsWithUnsavedTimestamps;
+    // Parsed friend statuses; coherent with the store as all writes go through Data
+    final LruCache<String, Status> mFriendStatuses = new LruCache<String, Status>(FRIEND_STATUS_CACHE_SIZE);
+    volatile int mFriendStatusWriteCount;
+    volatile List<AnnotatedMessage> mNewMessages = new ArrayList<AnnotatedMessage>();
+    // Sorted timeline of all messages. Unlike the other data sets, it's updated in place:
+    // the skip list supports concurrent reads and O(log n) inserts.
+    volatile ConcurrentSkipListSet<AnnotatedMessage> mAllMessages;
+    // Each friend's entries in the timeline, so removing a friend doesn't scan or rebuild it.
+    // Only used under the monitor.
+    HashMap<String, List<AnnotatedMessage>> mAllMessagesByFriendId;
+    volatile List<LocalResource> mLocalResources;
+    volatile DownloadQueues mDownloads;
+    // Cancelled and completed downloads; updated in place, like the message timeline
+    volatile ConcurrentHashMap<String, Download> mArchivedDownloads;
+
+    // Change versions. mVersion is a logical clock advanced by each change; each collection,
+    // and each friend, records the version of its latest change. Versions are in-memory only
+    // and start over with the process.
+    volatile long mVersion;
+    final ConcurrentHashMap<Collection, Long> mCollectionVersions = new ConcurrentHashMap<Collection, Long>();
+    final ConcurrentHashMap<String, Long> mFriendVersions = new ConcurrentHashMap<String, Long>();
 
     public synchronized void reset() throws Utils.ApplicationError {
-        // Warning: deletes all files in DATA_DIRECTORY (not recursively)
-        File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-        directory.mkdirs();
-        boolean deleteFailed = false;
-        for (String child : directory.list()) {
-            File file = new File(directory, child);
-            if (file.isFile()) {
-                if (!file.delete()) {
-                    deleteFailed = true;
-                    // Keep attempting to delete remaining files...
+        // Warning: deletes all stored data, including the message history
+        getStore().reset();
+    }
+
+    private void postEvent(Object event) {
+        if (this == instance) {
+            Events.post(event);
+        }
+    }
+
+    private DataStore getStore() throws Utils.ApplicationError {
+        DataStore store = mStore;
+        if (store == null) {
+            store = initStore();
+        }
+        return store;
+    }
+
+    private synchronized DataStore initStore() throws Utils.ApplicationError {
+        if (mStore == null) {
+            Context context = Utils.getApplicationContext();
+            String selectedStore = PreferenceManager.getDefaultSharedPreferences(context).getString(
+                    context.getString(R.string.preferenceDataStore), DATA_STORE_JSON_FILE);
+            DataStore jsonFileStore = new JsonFileDataStore(context.getDir(DATA_DIRECTORY, Context.MODE_PRIVATE));
+            jsonFileStore.open();
+            if (selectedStore.equals(DATA_STORE_SQLITE)) {
+                DataStore sqliteStore = new SqliteDataStore(context, DATABASE_NAME);
+                sqliteStore.open();
+                if (sqliteStore.isEmpty() && !jsonFileStore.isEmpty()) {
+                    migrateData(jsonFileStore, sqliteStore);
+                }
+                mStore = sqliteStore;
+            } else {
+                // Don't create a database just to find it's empty
+                if (jsonFileStore.isEmpty() && context.getDatabasePath(DATABASE_NAME).exists()) {
+                    DataStore sqliteStore = new SqliteDataStore(context, DATABASE_NAME);
+                    sqliteStore.open();
+                    if (!sqliteStore.isEmpty()) {
+                        migrateData(sqliteStore, jsonFileStore);
+                    }
+                    sqliteStore.close();
+                }
+                mStore = jsonFileStore;
+            }
+        }
+        return mStore;
+    }
+
+    private static void migrateData(DataStore fromStore, DataStore toStore) throws Utils.ApplicationError {
+        // Self is copied last: a store with no self is empty, so an interrupted migration
+        // is started over the next time the store is selected. The source store is then
+        // reset so that only one store holds data.
+        long startTime = SystemClock.elapsedRealtime();
+        toStore.reset();
+        try {
+            Status selfStatus = fromStore.getSelfStatus();
+            toStore.putSelfStatusLocation(selfStatus.mLocation);
+            List<Message> selfStatusMessages = new ArrayList<Message>(selfStatus.mMessages);
+            Collections.reverse(selfStatusMessages);
+            for (Message message : selfStatusMessages) {
+                toStore.addSelfStatusMessage(message);
+            }
+        } catch (DataNotFoundError e) {
+        }
+        List<Friend> friends = fromStore.getFriends();
+        toStore.putFriends(friends);
+        for (Friend friend : friends) {
+            try {
+                toStore.putFriendStatus(friend.mId, fromStore.getFriendStatus(friend.mId));
+            } catch (DataNotFoundError e) {
+            }
+        }
+        toStore.putLocalResources(fromStore.getLocalResources());
+        for (Download download : fromStore.getInProgressDownloads()) {
+            toStore.putDownload(download);
+        }
+        for (Download download : fromStore.getFinishedDownloads()) {
+            toStore.putDownload(download);
+        }
+        for (String author : fromStore.getMessageHistoryAuthors()) {
+            List<Message> messages = fromStore.getMessageHistory(author, null, null, Integer.MAX_VALUE);
+            Collections.reverse(messages);
+            toStore.appendMessageHistory(author, messages);
+        }
+        toStore.putSelf(fromStore.getSelf());
+        fromStore.reset();
+        Log.addEntry(LOG_TAG, String.format("migrated data in %d ms", SystemClock.elapsedRealtime() - startTime));
+    }
+
+    private abstract class WarmUpTask implements Runnable {
+        abstract void load() throws Utils.ApplicationError;
+
+        @Override
+        public void run() {
+            try {
+                load();
+            } catch (DataNotFoundError e) {
+                // No self yet
+            } catch (Utils.ApplicationError e) {
+                Log.addEntry(LOG_TAG, "failed to warm up data");
+            }
+        }
+    }
+
+    public void warmUp() {
+        // Loads all data sets and friend statuses in parallel, and then builds the message
+        // timeline, so that the first reader -- often the UI -- doesn't have to. Loading runs
+        // without the monitor; a result is only published if nothing was loaded or written in
+        // the meantime. Blocks until done, so call from a worker thread.
+        long startTime = SystemClock.elapsedRealtime();
+        ExecutorService threadPool = Executors.newFixedThreadPool(WARM_UP_THREAD_POOL_SIZE);
+        try {
+            getStore();
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            tasks.add(new WarmUpTask() {
+                @Override
+                void load() throws Utils.ApplicationError {
+                    getSelf();
+                    getSelfStatus();
+                }
+            });
+            tasks.add(new WarmUpTask() {
+                @Override
+                void load() throws Utils.ApplicationError {
+                    if (mFriends == null) {
+                        publishFriends(loadFriends());
+                    }
+                }
+            });
+            tasks.add(new WarmUpTask() {
+                @Override
+                void load() throws Utils.ApplicationError {
+                    if (mLocalResources == null) {
+                        publishLocalResources(loadLocalResources());
+                    }
                 }
+            });
+            tasks.add(new WarmUpTask() {
+                @Override
+                void load() throws Utils.ApplicationError {
+                    if (mArchivedDownloads == null) {
+                        publishDownloadArchive(loadDownloadArchive());
+                    }
+                    if (mDownloads == null) {
+                        publishDownloads(loadDownloads());
+                    }
+                }
+            });
+            runWarmUpTasks(threadPool, tasks);
+
+            tasks.clear();
+            for (Friend friend : getFriends()) {
+                final String friendId = friend.mId;
+                tasks.add(new WarmUpTask() {
+                    @Override
+                    void load() throws Utils.ApplicationError {
+                        int friendStatusWriteCount = mFriendStatusWriteCount;
+                        if (mFriendStatuses.get(friendId) == null) {
+                            publishFriendStatus(friendId, loadFriendStatus(friendId), friendStatusWriteCount);
+                        }
+                    }
+                });
+            }
+            runWarmUpTasks(threadPool, tasks);
+
+            new WarmUpTask() {
+                @Override
+                void load() throws Utils.ApplicationError {
+                    initMessages();
+                }
+            }.run();
+
+            Log.addEntry(LOG_TAG, String.format("warmed up data in %d ms", SystemClock.elapsedRealtime() - startTime));
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to warm up data");
+        } finally {
+            Utils.shutdownExecutorService(threadPool);
+        }
+    }
+
+    private static void runWarmUpTasks(ExecutorService threadPool, List<Runnable> tasks) {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Runnable task : tasks) {
+            futures.add(threadPool.submit(task));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // WarmUpTask handles its own errors
+            }
+        }
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public long getVersion(Collection collection) {
+        // A consumer that saves the version before reading a collection can skip the next read
+        // when the version is unchanged
+        Long version = mCollectionVersions.get(collection);
+        return (version != null) ? version : 0;
+    }
+
+    public long getFriendVersion(String friendId) {
+        // Changes when the friend, its last sent/received timestamps, or the friend's status
+        // changes, or when the friend is removed
+        Long version = mFriendVersions.get(friendId);
+        return (version != null) ? version : 0;
+    }
+
+    public Changes getChangesSince(long version) {
+        // Collections and friends changed after version. Pass the returned mVersion in the
+        // next call; a change may be reported twice, but none is missed.
+        long currentVersion = mVersion;
+        Set<Collection> collections = EnumSet.noneOf(Collection.class);
+        for (Map.Entry<Collection, Long> entry : mCollectionVersions.entrySet()) {
+            if (entry.getValue() > version) {
+                collections.add(entry.getKey());
             }
         }
-        if (deleteFailed) {
-            throw new Utils.ApplicationError(LOG_TAG, "delete data file failed");
+        Set<String> friendIds = new HashSet<String>();
+        for (Map.Entry<String, Long> entry : mFriendVersions.entrySet()) {
+            if (entry.getValue() > version) {
+                friendIds.add(entry.getKey());
+            }
         }
+        return new Changes(currentVersion, collections, friendIds);
     }
 
-    public synchronized Self getSelf() throws Utils.ApplicationError, DataNotFoundError {
+    private void recordChange(String friendId, Collection ... collections) {
+        // Called by writers, under the monitor, after publishing the change. Per-collection
+        // and per-friend versions are set before mVersion, so any reader that sees the new
+        // mVersion also sees them.
+        long version = mVersion + 1;
+        for (Collection collection : collections) {
+            mCollectionVersions.put(collection, version);
+        }
+        if (friendId != null) {
+            mFriendVersions.put(friendId, version);
+        }
+        mVersion = version;
+    }
+
+    public Self getSelf() throws Utils.ApplicationError, DataNotFoundError {
+        Self self = mSelf;
+        if (self == null) {
+            self = initSelf();
+        }
+        return self;
+    }
+
+    private synchronized Self initSelf() throws Utils.ApplicationError, DataNotFoundError {
         if (mSelf == null) {
-            mSelf = Json.fromJson(readFile(SELF_FILENAME), Self.class);
+            mSelf = getStore().getSelf();
         }
         return mSelf;
     }
 
     public synchronized void updateSelf(Self self) throws Utils.ApplicationError {
         // When creating a new identity, remove status from previous identity
-        deleteFile(String.format(SELF_STATUS_FILENAME));
-        writeFile(SELF_FILENAME, Json.toJson(self));
+        DataStore store = getStore();
+        store.removeSelfStatus();
+        store.putSelf(self);
         mSelf = self;
+        mSelfStatus = null;
+        mSelfStatusEncodings = null;
+        store.removeMessageHistory(SELF_MESSAGE_HISTORY_AUTHOR);
+        recordChange(null, Collection.SELF, Collection.SELF_STATUS);
         Log.addEntry(LOG_TAG, "updated your identity");
-        Events.post(new Events.UpdatedSelf());
+        postEvent(new Events.UpdatedSelf());
     }
 
-    public synchronized Status getSelfStatus() throws Utils.ApplicationError {
+    public Status getSelfStatus() throws Utils.ApplicationError {
+        Status status = mSelfStatus;
+        if (status == null) {
+            status = initSelfStatus();
+        }
+        return status;
+    }
+
+    private synchronized Status initSelfStatus() throws Utils.ApplicationError {
         if (mSelfStatus == null) {
             try {
-                mSelfStatus = Json.fromJson(readFile(SELF_STATUS_FILENAME), Status.class);
+                mSelfStatus = getStore().getSelfStatus();
             } catch (DataNotFoundError e) {
-                // If there's no previous status, return a blank one
-                return new Status(new ArrayList<Message>(), new Location(null, 0, 0, 0, null));
+                // If there's no previous status, start with a blank one
+                mSelfStatus = new Status(new ArrayList<Message>(), new Location(null, 0, 0, 0, null));
             }
         }
         return mSelfStatus;
     }
 
-    public synchronized Location getCurrentSelfLocation() throws Utils.ApplicationError {
+    public EncodedStatus getEncodedSelfStatus(String mimeType, boolean compressed) throws Utils.ApplicationError {
+        // Every push and pull of the same self status sends the same bytes, so the status is
+        // encoded once per encoding and version, not once per friend. Not synchronized:
+        // concurrent misses may encode twice. The version is read before the status, so an
+        // encoding is never older than its version (at worst, a newer status is resent).
+        long version = getVersion(Collection.SELF_STATUS);
+        SelfStatusEncodings encodings = mSelfStatusEncodings;
+        if (encodings == null || encodings.mVersion != version) {
+            encodings = new SelfStatusEncodings(version);
+            mSelfStatusEncodings = encodings;
+        }
+        String key = mimeType + (compressed ? "+" + Protocol.STATUS_COMPRESSED_CONTENT_ENCODING : "");
+        EncodedStatus encodedStatus = encodings.mEncodedStatuses.get(key);
+        if (encodedStatus == null) {
+            byte[] bytes;
+            if (compressed) {
+                bytes = StatusCodec.compress(getEncodedSelfStatus(mimeType, false).mBytes);
+            } else {
+                bytes = StatusCodec.encode(getSelfStatus(), mimeType);
+            }
+            encodedStatus = new EncodedStatus(version, mimeType, compressed, bytes);
+            encodings.mEncodedStatuses.put(key, encodedStatus);
+        }
+        return encodedStatus;
+    }
+
+    static void addStatusMessageHelper(List<Message> messages, Message message) {
+        messages.add(0, message);
+        while (messages.size() > Protocol.MAX_MESSAGE_COUNT) {
+            messages.remove(messages.size() - 1);
+        }
+    }
+
+    public Location getCurrentSelfLocation() throws Utils.ApplicationError {
         // If location sharing was off when updateSelfStatusLocation was last called, then
         // mPrivateSelfLocation is the more up-to-date than mSelfStatus.
-        if (mPrivateSelfLocation == null) {
+        Location privateSelfLocation = mPrivateSelfLocation;
+        if (privateSelfLocation == null) {
             return getSelfStatus().mLocation;
         }
-        return mPrivateSelfLocation;
+        return privateSelfLocation;
     }
 
     public synchronized void addSelfStatusMessage(Message message, List<LocalResource> attachmentLocalResources) throws Utils.ApplicationError, DataNotFoundError {
@@ -368,110 +849,138 @@ public class Data {
 
         Status currentStatus = getSelfStatus();
         List<Message> messages = new ArrayList<Message>(currentStatus.mMessages);
-        messages.add(0, message);
-        while (messages.size() > Protocol.MAX_MESSAGE_COUNT) {
-            messages.remove(messages.size() - 1);
-        }
+        addStatusMessageHelper(messages, message);
         Status newStatus = new Status(messages, currentStatus.mLocation);
 
+        DataStore store = getStore();
         if (newLocalResources != null) {
-            writeFile(LOCAL_RESOURCES_FILENAME, Json.toJson(newLocalResources));
+            store.putLocalResources(attachmentLocalResources);
         }
-        writeFile(SELF_STATUS_FILENAME, Json.toJson(newStatus));
+        store.addSelfStatusMessage(message);
         if (newLocalResources != null) {
-            mLocalResources.addAll(attachmentLocalResources);
+            mLocalResources = newLocalResources;
+            recordChange(null, Collection.LOCAL_RESOURCES);
         }
         mSelfStatus = newStatus;
+        mSelfStatusEncodings = null;
+        recordChange(null, Collection.SELF_STATUS);
         Log.addEntry(LOG_TAG, "added your message");
-        Events.post(new Events.UpdatedSelfStatus());
+        postEvent(new Events.UpdatedSelfStatus());
         addSelfMessageHelper(getSelf(), message);
+        addMessageHistoryHelper(SELF_MESSAGE_HISTORY_AUTHOR, currentStatus.mMessages, Arrays.asList(message));
     }
 
     public synchronized void updateSelfStatusLocation(Location location, boolean shared) throws Utils.ApplicationError {
         if (shared) {
             Status currentStatus = getSelfStatus();
             Status newStatus = new Status(currentStatus.mMessages, location);
-            writeFile(SELF_STATUS_FILENAME, Json.toJson(newStatus));
+            getStore().putSelfStatusLocation(location);
             mSelfStatus = newStatus;
+            mSelfStatusEncodings = null;
             mPrivateSelfLocation = location;
+            recordChange(null, Collection.SELF_STATUS);
         } else {
             mPrivateSelfLocation = location;
         }
         Log.addEntry(LOG_TAG, "updated your location");
-        Events.post(new Events.UpdatedSelfStatus());
+        postEvent(new Events.UpdatedSelfStatus());
     }
 
-    private void initFriends() throws Utils.ApplicationError {
+    private Friends getFriendsSnapshot() throws Utils.ApplicationError {
+        Friends friends = mFriends;
+        if (friends == null) {
+            friends = initFriends();
+        }
+        return friends;
+    }
+
+    private synchronized Friends initFriends() throws Utils.ApplicationError {
         if (mFriends == null) {
-            try {
-                mFriends = new ArrayList<Friend>(Arrays.asList(Json.fromJson(readFile(FRIENDS_FILENAME), Friend[].class)));
-            } catch (DataNotFoundError e) {
-                mFriends = new ArrayList<Friend>();
-            }
+            publishFriends(loadFriends());
         }
+        return mFriends;
     }
 
-    public synchronized List<Friend> getFriends() throws Utils.ApplicationError {
-        initFriends();
-        List<Friend> friends = new ArrayList<Friend>(mFriends);
+    private Friends loadFriends() throws Utils.ApplicationError {
+        Friends friends = new Friends();
+        for (Friend friend : getStore().getFriends()) {
+            friends.mList.add(friend);
+            indexFriendHelper(friends, friend);
+        }
+        return friends;
+    }
+
+    private synchronized void publishFriends(Friends friends) {
+        if (mFriends == null) {
+            mFriendsWithUnsavedTimestamps = new HashSet<String>();
+            mFriends = friends;
+        }
+    }
+
+    private static String getNicknameKey(String nickname) {
+        return nickname.toLowerCase(Locale.US);
+    }
+
+    private static void indexFriendHelper(Friends friends, Friend friend) throws Utils.ApplicationError {
+        friends.mById.put(friend.mId, friend);
+        friends.mIdsByCertificateDigest.put(friend.mPublicIdentity.getCertificateDigest(), friend.mId);
+        friends.mIdsByNickname.put(getNicknameKey(friend.mPublicIdentity.mNickname), friend.mId);
+    }
+
+    private static void unindexFriendHelper(Friends friends, Friend friend) throws Utils.ApplicationError {
+        friends.mById.remove(friend.mId);
+        friends.mIdsByCertificateDigest.remove(friend.mPublicIdentity.getCertificateDigest());
+        friends.mIdsByNickname.remove(getNicknameKey(friend.mPublicIdentity.mNickname));
+    }
+
+    public List<Friend> getFriends() throws Utils.ApplicationError {
+        List<Friend> friends = new ArrayList<Friend>(getFriendsSnapshot().mList);
         Collections.sort(friends, new FriendComparator());
         return friends;
     }
 
-    public synchronized Friend getFriendById(String id) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        for (Friend friend : mFriends) {
-            if (friend.mId.equals(id)) {
-                return friend;
-            }
+    public Friend getFriendById(String id) throws Utils.ApplicationError, DataNotFoundError {
+        Friend friend = getFriendsSnapshot().mById.get(id);
+        if (friend == null) {
+            throw new DataNotFoundError();
         }
-        throw new DataNotFoundError();
+        return friend;
     }
 
-    public synchronized Friend getFriendByNickname(String nickname) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        for (Friend friend : mFriends) {
-            if (friend.mPublicIdentity.mNickname.equals(nickname)) {
-                return friend;
-            }
+    public Friend getFriendByNickname(String nickname) throws Utils.ApplicationError, DataNotFoundError {
+        // Note: nicknames are matched case-insensitively
+        Friends friends = getFriendsSnapshot();
+        String id = friends.mIdsByNickname.get(getNicknameKey(nickname));
+        if (id == null) {
+            throw new DataNotFoundError();
         }
-        throw new DataNotFoundError();
+        return friends.mById.get(id);
     }
 
-    public synchronized Friend getFriendByCertificate(String certificate) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        for (Friend friend : mFriends) {
-            if (friend.mPublicIdentity.mX509Certificate.equals(certificate)) {
-                return friend;
-            }
+    public Friend getFriendByCertificate(String certificate) throws Utils.ApplicationError, DataNotFoundError {
+        Friends friends = getFriendsSnapshot();
+        String id = friends.mIdsByCertificateDigest.get(Identity.PublicIdentity.getCertificateDigest(certificate));
+        if (id == null) {
+            throw new DataNotFoundError();
         }
-        throw new DataNotFoundError();
+        return friends.mById.get(id);
     }
 
     public synchronized void addFriend(Friend friend) throws Utils.ApplicationError {
-        initFriends();
-        boolean friendWithIdExists = true;
-        boolean friendWithNicknameExists = true;
-        try {
-            getFriendById(friend.mId);
-        } catch (DataNotFoundError e) {
-            friendWithIdExists = false;
-        }
-        try {
-            getFriendByNickname(friend.mPublicIdentity.mNickname);
-        } catch (DataNotFoundError e) {
-            friendWithNicknameExists = false;
-        }
+        Friends friends = new Friends(initFriends());
         // TODO: report which conflict occurred
-        if (friendWithIdExists || friendWithNicknameExists) {
+        if (friends.mById.containsKey(friend.mId) ||
+                friends.mIdsByNickname.containsKey(getNicknameKey(friend.mPublicIdentity.mNickname)) ||
+                friends.mIdsByCertificateDigest.containsKey(friend.mPublicIdentity.getCertificateDigest())) {
             throw new DataAlreadyExistsError();
         }
-        List<Friend> newFriends = new ArrayList<Friend>(mFriends);
-        newFriends.add(friend);
-        writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
-        mFriends.add(friend);
+        getStore().putFriends(Arrays.asList(friend));
+        friends.mList.add(friend);
+        indexFriendHelper(friends, friend);
+        mFriends = friends;
+        recordChange(friend.mId, Collection.FRIENDS);
         Log.addEntry(LOG_TAG, "added friend: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.AddedFriend(friend.mId));
+        postEvent(new Events.AddedFriend(friend.mId));
     }
 
     private void updateFriendHelper(List<Friend> list, Friend friend) throws DataNotFoundError {
@@ -489,48 +998,90 @@ public class Data {
     }
 
     public synchronized void updateFriend(Friend friend) throws Utils.ApplicationError {
-        initFriends();
-        List<Friend> newFriends = new ArrayList<Friend>(mFriends);
-        updateFriendHelper(newFriends, friend);
-        writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
-        updateFriendHelper(mFriends, friend);
+        Friends friends = new Friends(initFriends());
+        Friend previousFriend = getFriendById(friend.mId);
+        friend = withCurrentTimestamps(friend);
+        getStore().putFriends(Arrays.asList(friend));
+        mFriendsWithUnsavedTimestamps.remove(friend.mId);
+        updateFriendHelper(friends.mList, friend);
+        unindexFriendHelper(friends, previousFriend);
+        indexFriendHelper(friends, friend);
+        mFriends = friends;
+        recordChange(friend.mId, Collection.FRIENDS);
         Log.addEntry(LOG_TAG, "updated friend: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.UpdatedFriend(friend.mId));
+        postEvent(new Events.UpdatedFriend(friend.mId));
     }
 
-    public synchronized Date getFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
-        Friend friend = getFriendById(friendId);
-        return friend.mLastSentStatusTimestamp;
+    public Date getFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
+        return getFriendTimestamps(getFriendById(friendId)).mLastSentStatusTimestamp;
     }
 
     public synchronized void updateFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
-        // TODO: don't write an entire file for each timestamp update!
         Friend friend = getFriendById(friendId);
-        updateFriend(
-            new Friend(
-                friend.mPublicIdentity,
-                friend.mAddedTimestamp,
+        updateFriendTimestampsHelper(
+            friend.mId,
+            new FriendTimestamps(
                 new Date(),
-                friend.mLastReceivedStatusTimestamp));
+                getFriendTimestamps(friend).mLastReceivedStatusTimestamp));
     }
 
-    public synchronized Date getFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
-        Friend friend = getFriendById(friendId);
-        return friend.mLastReceivedStatusTimestamp;
+    public Date getFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
+        return getFriendTimestamps(getFriendById(friendId)).mLastReceivedStatusTimestamp;
     }
 
     public synchronized void updateFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
-        // TODO: don't write an entire file for each timestamp update!
         Friend friend = getFriendById(friendId);
-        updateFriend(
-            new Friend(
-                friend.mPublicIdentity,
-                friend.mAddedTimestamp,
-                friend.mLastSentStatusTimestamp,
+        updateFriendTimestampsHelper(
+            friend.mId,
+            new FriendTimestamps(
+                getFriendTimestamps(friend).mLastSentStatusTimestamp,
                 new Date()));
     }
 
-    private void removeFriendHelper(String id, List<Friend> list) throws DataNotFoundError {
+    private FriendTimestamps getFriendTimestamps(Friend friend) {
+        FriendTimestamps timestamps = mFriendTimestamps.get(friend.mId);
+        if (timestamps == null) {
+            timestamps = new FriendTimestamps(friend.mLastSentStatusTimestamp, friend.mLastReceivedStatusTimestamp);
+        }
+        return timestamps;
+    }
+
+    private Friend withCurrentTimestamps(Friend friend) {
+        FriendTimestamps timestamps = mFriendTimestamps.get(friend.mId);
+        if (timestamps == null) {
+            return friend;
+        }
+        return new Friend(friend, timestamps.mLastSentStatusTimestamp, timestamps.mLastReceivedStatusTimestamp);
+    }
+
+    private void updateFriendTimestampsHelper(String friendId, FriendTimestamps timestamps) {
+        // Last sent/received timestamps change on every push, pull and served request, so
+        // they're only updated in memory here, in constant time, and persisted in batches by
+        // flushFriendTimestamps. Timestamp updates made since the last flush are lost if the
+        // process is killed.
+        mFriendTimestamps.put(friendId, timestamps);
+        mFriendsWithUnsavedTimestamps.add(friendId);
+        recordChange(friendId, Collection.FRIEND_TIMESTAMPS);
+        postEvent(new Events.UpdatedFriendTimestamps(friendId));
+    }
+
+    public synchronized void flushFriendTimestamps() throws Utils.ApplicationError {
+        Friends friends = initFriends();
+        if (mFriendsWithUnsavedTimestamps.isEmpty()) {
+            return;
+        }
+        List<Friend> unsavedFriends = new ArrayList<Friend>();
+        for (String friendId : mFriendsWithUnsavedTimestamps) {
+            Friend friend = friends.mById.get(friendId);
+            if (friend != null) {
+                unsavedFriends.add(withCurrentTimestamps(friend));
+            }
+        }
+        getStore().putFriends(unsavedFriends);
+        mFriendsWithUnsavedTimestamps.clear();
+    }
+
+    private static void removeFriendHelper(String id, List<Friend> list) throws DataNotFoundError {
         boolean found = false;
         for (int i = 0; i < list.size(); i++) {
             if (list.get(i).mId.equals(id)) {
@@ -545,24 +1096,117 @@ public class Data {
     }
 
     public synchronized void removeFriend(String id) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
+        Friends friends = new Friends(initFriends());
         Friend friend = getFriendById(id);
-        deleteFile(String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, id));
-        List<Friend> newFriends = new ArrayList<Friend>(mFriends);
-        removeFriendHelper(id, newFriends);
-        writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
-        removeFriendHelper(id, mFriends);
+        // Load the downloads before the friend's download records are removed from the
+        // store, so the friend's downloads are found and their files deleted
+        initDownloads();
+        initDownloadArchive();
+        DataStore store = getStore();
+        store.removeFriend(id);
+        mFriendStatuses.remove(id);
+        mFriendStatusWriteCount++;
+        store.removeMessageHistory(id);
+        store.removeDownloads(id);
+        mFriendsWithUnsavedTimestamps.remove(id);
+        mFriendTimestamps.remove(id);
+        removeFriendHelper(id, friends.mList);
+        unindexFriendHelper(friends, friend);
+        mFriends = friends;
+        recordChange(id, Collection.FRIENDS, Collection.FRIEND_STATUSES);
         Log.addEntry(LOG_TAG, "removed friend: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.RemovedFriend(id));
-        // Reset all-messages to remove messages from deleted friend
-        // TODO: reset new-messages
-        mAllMessages = null;
-        initMessages();
+        removeFriendMessagesHelper(id);
+        List<Download> removedDownloads = removeFriendDownloadsHelper(id);
+        // The Engine deletes the downloaded files, after stopping any download in progress
+        postEvent(new Events.RemovedFriend(id, removedDownloads));
     }
 
-    public synchronized Status getFriendStatus(String id) throws Utils.ApplicationError, DataNotFoundError {
-        String filename = String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, id);
-        return Json.fromJson(readFile(filename), Status.class);
+    private void removeFriendMessagesHelper(String friendId) {
+        // Only the friend's own entries are removed, so the cost is proportional to the
+        // friend's messages, not to all messages
+        if (mAllMessages != null) {
+            List<AnnotatedMessage> friendMessages = mAllMessagesByFriendId.remove(friendId);
+            if (friendMessages != null) {
+                mAllMessages.removeAll(friendMessages);
+                recordChange(null, Collection.ALL_MESSAGES);
+                postEvent(new Events.UpdatedAllMessages());
+            }
+        }
+        List<AnnotatedMessage> newMessages = new ArrayList<AnnotatedMessage>();
+        for (AnnotatedMessage message : mNewMessages) {
+            if (!friendId.equals(message.mFriendId)) {
+                newMessages.add(message);
+            }
+        }
+        if (newMessages.size() != mNewMessages.size()) {
+            mNewMessages = newMessages;
+            recordChange(null, Collection.NEW_MESSAGES);
+            postEvent(new Events.UpdatedNewMessages());
+        }
+    }
+
+    private List<Download> removeFriendDownloadsHelper(String friendId) throws Utils.ApplicationError {
+        // The download records are already removed from the store; this drops them from
+        // memory and returns them
+        List<Download> removedDownloads = new ArrayList<Download>();
+        DownloadQueues downloads = initDownloads();
+        List<Download> queue = downloads.mQueuesByFriendId.get(friendId);
+        if (queue != null) {
+            downloads = new DownloadQueues(downloads);
+            for (Download download : queue) {
+                dequeueDownloadHelper(downloads, download);
+                removedDownloads.add(download);
+            }
+            mDownloads = downloads;
+        }
+        ConcurrentHashMap<String, Download> archivedDownloads = initDownloadArchive();
+        for (Download download : archivedDownloads.values()) {
+            if (download.mFriendId.equals(friendId)) {
+                archivedDownloads.remove(getDownloadKey(download.mFriendId, download.mResourceId));
+                removedDownloads.add(download);
+            }
+        }
+        if (removedDownloads.size() > 0) {
+            recordChange(null, Collection.DOWNLOADS);
+        }
+        return removedDownloads;
+    }
+
+    public Status getFriendStatus(String id) throws Utils.ApplicationError, DataNotFoundError {
+        Status status = mFriendStatuses.get(id);
+        if (status == null) {
+            status = initFriendStatus(id);
+        }
+        if (status == NO_FRIEND_STATUS) {
+            throw new DataNotFoundError();
+        }
+        return status;
+    }
+
+    private synchronized Status initFriendStatus(String id) throws Utils.ApplicationError {
+        // Loading under the monitor ensures a status read from disk can't replace a
+        // newer one cached by a concurrent updateFriendStatus
+        Status status = mFriendStatuses.get(id);
+        if (status == null) {
+            status = loadFriendStatus(id);
+            mFriendStatuses.put(id, status);
+        }
+        return status;
+    }
+
+    private Status loadFriendStatus(String id) throws Utils.ApplicationError {
+        try {
+            return getStore().getFriendStatus(id);
+        } catch (DataNotFoundError e) {
+            return NO_FRIEND_STATUS;
+        }
+    }
+
+    private synchronized void publishFriendStatus(String id, Status status, int friendStatusWriteCount) {
+        // Discard when the status was written or removed after loading began
+        if (friendStatusWriteCount == mFriendStatusWriteCount && mFriendStatuses.get(id) == null) {
+            mFriendStatuses.put(id, status);
+        }
     }
 
     public synchronized void updateFriendStatus(String id, Status status) throws Utils.ApplicationError {
@@ -583,52 +1227,64 @@ public class Data {
                 if (previousStatus.mMessages.get(0).mTimestamp == null || status.mMessages.get(0).mTimestamp == null) {
                     Log.addEntry(LOG_TAG, "discarded friend status (timestamp unexpectedly null): " + friend.mPublicIdentity.mNickname);
                     return;
-                } else if (previousStatus.mMessages.get(0).mTimestamp.after(status.mMessages.get(0).mTimestamp)) {
+                } else if (compareMessageTimestamps(previousStatus.mMessages.get(0).mTimestamp, status.mMessages.get(0).mTimestamp) > 0) {
                     Log.addEntry(LOG_TAG, "discarded friend status (older timestamp): " + friend.mPublicIdentity.mNickname);
                     return;
                 }
             }
         } catch (DataNotFoundError e) {
         }
-        String filename = String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, id);
-        writeFile(filename, Json.toJson(status));
+        getStore().putFriendStatus(id, status);
+        mFriendStatuses.put(id, status);
+        mFriendStatusWriteCount++;
+        recordChange(id, Collection.FRIEND_STATUSES);
         Log.addEntry(LOG_TAG, "updated friend status: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.UpdatedFriendStatus(friend.mId));
+        postEvent(new Events.UpdatedFriendStatus(friend.mId));
         addFriendMessagesHelper(friend, status, previousStatus);
     }
 
-    private void initMessages() throws Utils.ApplicationError {
+    private synchronized ConcurrentSkipListSet<AnnotatedMessage> initMessages() throws Utils.ApplicationError {
         // TODO: this implementation is only intended for the prototype, which isn't sending incremental updates
         // TODO: persistent (on disk) new-message state?
         // Note: new-messages is not cleared in start() or stop(), so its state is retained when the Engine restarts
-        if (mNewMessages == null) {
-            mNewMessages = new ArrayList<AnnotatedMessage>();
-        }
         if (mAllMessages == null) {
-            mAllMessages = new ArrayList<AnnotatedMessage>();
-            Self self = getSelf();
-            try {
-                for (Message message : getSelfStatus().mMessages) {
-                    mAllMessages.add(new AnnotatedMessage(self.mPublicIdentity, null, message));
-                }
-            } catch (DataNotFoundError e) {
-                // Skip
+            HashMap<String, List<AnnotatedMessage>> allMessagesByFriendId = new HashMap<String, List<AnnotatedMessage>>();
+            ConcurrentSkipListSet<AnnotatedMessage> allMessages = loadAllMessages(allMessagesByFriendId);
+            mAllMessagesByFriendId = allMessagesByFriendId;
+            mAllMessages = allMessages;
+            postEvent(new Events.UpdatedAllMessages());
+        }
+        return mAllMessages;
+    }
+
+    private ConcurrentSkipListSet<AnnotatedMessage> loadAllMessages(
+            HashMap<String, List<AnnotatedMessage>> allMessagesByFriendId) throws Utils.ApplicationError {
+        ConcurrentSkipListSet<AnnotatedMessage> allMessages =
+                new ConcurrentSkipListSet<AnnotatedMessage>(new AnnotatedMessageComparator());
+        Self self = getSelf();
+        try {
+            for (Message message : getSelfStatus().mMessages) {
+                allMessages.add(new AnnotatedMessage(self.mPublicIdentity, null, message));
             }
-            for (Friend friend : getFriends()) {
-                // Hack to continue supporting self-as-friend, for now
-                if (!self.mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
-                    try {
-                        for (Message message : getFriendStatus(friend.mId).mMessages) {
-                            mAllMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
-                        }
-                    } catch (DataNotFoundError e) {
-                        // Skip
+        } catch (DataNotFoundError e) {
+            // Skip
+        }
+        for (Friend friend : getFriends()) {
+            // Hack to continue supporting self-as-friend, for now
+            if (!self.mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
+                try {
+                    List<AnnotatedMessage> friendMessages = new ArrayList<AnnotatedMessage>();
+                    for (Message message : getFriendStatus(friend.mId).mMessages) {
+                        friendMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
                     }
+                    allMessages.addAll(friendMessages);
+                    allMessagesByFriendId.put(friend.mId, friendMessages);
+                } catch (DataNotFoundError e) {
+                    // Skip
                 }
             }
-            Collections.sort(mAllMessages, new AnnotatedMessageComparator());
-            Events.post(new Events.UpdatedAllMessages());
         }
+        return allMessages;
     }
 
     private void addFriendMessagesHelper(Friend friend, Status status, Status previousStatus) throws Utils.ApplicationError {
@@ -640,11 +1296,13 @@ public class Data {
             lastMessage = previousStatus.mMessages.get(0);
         }
         List<AnnotatedMessage> newMessages = new ArrayList<AnnotatedMessage>();
+        List<Message> newHistoryMessages = new ArrayList<Message>();
         for (Data.Message message : status.mMessages) {
             if (lastMessage == null ||
-                    !message.mTimestamp.equals(lastMessage.mTimestamp) ||
+                    compareMessageTimestamps(message.mTimestamp, lastMessage.mTimestamp) != 0 ||
                     !message.mContent.equals(lastMessage.mContent)) {
                 newMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
+                newHistoryMessages.add(message);
                 // Automatically enqueue new message attachments for download
                 for (Resource resource : message.mAttachments) {
                     try {
@@ -658,56 +1316,134 @@ public class Data {
             }
         }
 
+        addMessageHistoryHelper(
+                friend.mId,
+                previousStatus != null ? previousStatus.mMessages : null,
+                newHistoryMessages);
+
         if (newMessages.size() > 0) {
-            mNewMessages.addAll(0, newMessages);
-            Events.post(new Events.UpdatedNewMessages());
+            List<AnnotatedMessage> allNewMessages = new ArrayList<AnnotatedMessage>(newMessages);
+            allNewMessages.addAll(mNewMessages);
+            mNewMessages = allNewMessages;
+            recordChange(null, Collection.NEW_MESSAGES);
+            postEvent(new Events.UpdatedNewMessages());
             // Hack to continue supporting self-as-friend, for now
             if (!getSelf().mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
-                mAllMessages.addAll(0, newMessages);
-                Collections.sort(mAllMessages, new AnnotatedMessageComparator());
-                Events.post(new Events.UpdatedAllMessages());
+                mAllMessages.addAll(newMessages);
+                List<AnnotatedMessage> friendMessages = mAllMessagesByFriendId.get(friend.mId);
+                if (friendMessages == null) {
+                    friendMessages = new ArrayList<AnnotatedMessage>();
+                    mAllMessagesByFriendId.put(friend.mId, friendMessages);
+                }
+                friendMessages.addAll(newMessages);
+                recordChange(null, Collection.ALL_MESSAGES);
+                postEvent(new Events.UpdatedAllMessages());
             }
         }
     }
 
     private void addSelfMessageHelper(Self self, Message message) throws Utils.ApplicationError {
-        initMessages();
-        mAllMessages.add(0, new AnnotatedMessage(self.mPublicIdentity, null, message));
-        Events.post(new Events.UpdatedAllMessages());
+        initMessages().add(new AnnotatedMessage(self.mPublicIdentity, null, message));
+        recordChange(null, Collection.ALL_MESSAGES);
+        postEvent(new Events.UpdatedAllMessages());
     }
 
-    public synchronized List<AnnotatedMessage> getNewMessages() throws Utils.ApplicationError {
-        initMessages();
-        return new ArrayList<AnnotatedMessage>(mNewMessages);
+    public List<AnnotatedMessage> getNewMessages() throws Utils.ApplicationError {
+        return Collections.unmodifiableList(mNewMessages);
+    }
+
+    static int compareMessageTimestamps(Date a, Date b) {
+        // Timestamps from peers which predate millisecond timestamps, and those stored before,
+        // have second resolution. When either is a whole second, compare at that resolution,
+        // so a message compares as equal to itself whichever way it was received.
+        long aTime = a.getTime();
+        long bTime = b.getTime();
+        if (aTime % 1000 == 0 || bTime % 1000 == 0) {
+            aTime /= 1000;
+            bTime /= 1000;
+        }
+        return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+    }
+
+    private void addMessageHistoryHelper(String author, List<Message> previousMessages, List<Message> newMessages) throws Utils.ApplicationError {
+        // Both lists are newest first, as in Status. The message history is started with the
+        // messages already in the status, so existing messages are retained on upgrade.
+        DataStore store = getStore();
+        List<Message> messages = new ArrayList<Message>(newMessages);
+        if (previousMessages != null && !store.hasMessageHistory(author)) {
+            messages.addAll(previousMessages);
+        }
+        Collections.reverse(messages);
+        store.appendMessageHistory(author, messages);
+    }
+
+    public List<Message> getMessageHistory(String friendId, Date from, Date to, int limit) throws Utils.ApplicationError {
+        // Returns messages for the friend, or for self when friendId is null, newest first.
+        // Unlike a status, the history isn't limited to the most recent messages.
+        // Note: the UI doesn't yet display the history; it's stored for a future history view.
+        return getStore().getMessageHistory(
+                friendId != null ? friendId : SELF_MESSAGE_HISTORY_AUTHOR, from, to, limit);
     }
 
     public synchronized void resetNewMessages() throws Utils.ApplicationError {
-        initMessages();
         boolean updatedNewMessages = (mNewMessages.size() > 0);
-        mNewMessages.clear();
+        mNewMessages = new ArrayList<AnnotatedMessage>();
         if (updatedNewMessages) {
-            Events.post(new Events.UpdatedNewMessages());
+            recordChange(null, Collection.NEW_MESSAGES);
+            postEvent(new Events.UpdatedNewMessages());
         }
     }
 
-    public synchronized List<AnnotatedMessage> getAllMessages() throws Utils.ApplicationError {
-        initMessages();
-        return new ArrayList<AnnotatedMessage>(mAllMessages);
+    private ConcurrentSkipListSet<AnnotatedMessage> getMessagesSnapshot() throws Utils.ApplicationError {
+        ConcurrentSkipListSet<AnnotatedMessage> allMessages = mAllMessages;
+        if (allMessages == null) {
+            allMessages = initMessages();
+        }
+        return allMessages;
     }
 
-    private void initLocalResources() throws Utils.ApplicationError {
-        if (mLocalResources == null) {
-            try {
-                mLocalResources = new ArrayList<LocalResource>(Arrays.asList(Json.fromJson(readFile(LOCAL_RESOURCES_FILENAME), LocalResource[].class)));
-            } catch (DataNotFoundError e) {
-                mLocalResources = new ArrayList<LocalResource>();
+    public List<AnnotatedMessage> getMessages(AnnotatedMessage before, int limit) throws Utils.ApplicationError {
+        // Returns up to limit messages, in timeline order, starting with the first message
+        // after before, or with the most recent message when before is null. Using the
+        // last message of a page as the next before pages through the timeline; paging is
+        // stable as new messages are added.
+        NavigableSet<AnnotatedMessage> messages = getMessagesSnapshot();
+        if (before != null) {
+            messages = messages.tailSet(before, false);
+        }
+        List<AnnotatedMessage> page = new ArrayList<AnnotatedMessage>();
+        for (AnnotatedMessage message : messages) {
+            if (page.size() >= limit) {
+                break;
             }
+            page.add(message);
         }
+        return page;
     }
 
-    public synchronized LocalResource getLocalResource(String resourceId) throws Utils.ApplicationError, DataNotFoundError {
-        initLocalResources();
-        for (LocalResource localResource : mLocalResources) {
+    private synchronized List<LocalResource> initLocalResources() throws Utils.ApplicationError {
+        if (mLocalResources == null) {
+            publishLocalResources(loadLocalResources());
+        }
+        return mLocalResources;
+    }
+
+    private List<LocalResource> loadLocalResources() throws Utils.ApplicationError {
+        return getStore().getLocalResources();
+    }
+
+    private synchronized void publishLocalResources(List<LocalResource> localResources) {
+        if (mLocalResources == null) {
+            mLocalResources = localResources;
+        }
+    }
+
+    public LocalResource getLocalResource(String resourceId) throws Utils.ApplicationError, DataNotFoundError {
+        List<LocalResource> localResources = mLocalResources;
+        if (localResources == null) {
+            localResources = initLocalResources();
+        }
+        for (LocalResource localResource : localResources) {
             if (localResource.mResourceId.equals(resourceId)) {
                 return localResource;
             }
@@ -715,34 +1451,118 @@ public class Data {
         throw new DataNotFoundError();
     }
 
-    private void initDownloads() throws Utils.ApplicationError {
+    private DownloadQueues getDownloadsSnapshot() throws Utils.ApplicationError {
+        DownloadQueues downloads = mDownloads;
+        if (downloads == null) {
+            downloads = initDownloads();
+        }
+        return downloads;
+    }
+
+    private synchronized DownloadQueues initDownloads() throws Utils.ApplicationError {
         if (mDownloads == null) {
-            try {
-                mDownloads = new ArrayList<Download>(Arrays.asList(Json.fromJson(readFile(DOWNLOADS_FILENAME), Download[].class)));
-            } catch (DataNotFoundError e) {
-                mDownloads = new ArrayList<Download>();
+            publishDownloads(loadDownloads());
+        }
+        return mDownloads;
+    }
+
+    private List<Download> loadDownloads() throws Utils.ApplicationError {
+        return getStore().getInProgressDownloads();
+    }
+
+    private synchronized void publishDownloads(List<Download> list) {
+        if (mDownloads == null) {
+            DownloadQueues downloads = new DownloadQueues();
+            for (Download download : list) {
+                enqueueDownloadHelper(downloads, download);
             }
+            mDownloads = downloads;
         }
     }
 
-    public synchronized Download getDownload(String friendId, String resourceId) throws Utils.ApplicationError, DataNotFoundError {
-        initDownloads();
-        for (Download download : mDownloads) {
-            if (download.mFriendId.equals(friendId) && download.mResourceId.equals(resourceId)) {
-                return download;
+    private synchronized ConcurrentHashMap<String, Download> initDownloadArchive() throws Utils.ApplicationError {
+        if (mArchivedDownloads == null) {
+            publishDownloadArchive(loadDownloadArchive());
+        }
+        return mArchivedDownloads;
+    }
+
+    private ConcurrentHashMap<String, Download> loadDownloadArchive() throws Utils.ApplicationError {
+        ConcurrentHashMap<String, Download> archivedDownloads = new ConcurrentHashMap<String, Download>();
+        for (Download download : getStore().getFinishedDownloads()) {
+            archivedDownloads.put(getDownloadKey(download.mFriendId, download.mResourceId), download);
+        }
+        return archivedDownloads;
+    }
+
+    private synchronized void publishDownloadArchive(ConcurrentHashMap<String, Download> archivedDownloads) {
+        if (mArchivedDownloads == null) {
+            mArchivedDownloads = archivedDownloads;
+        }
+    }
+
+    private static String getDownloadKey(String friendId, String resourceId) {
+        return friendId + "/" + resourceId;
+    }
+
+    private static void enqueueDownloadHelper(DownloadQueues downloads, Download download) {
+        // Updates the download in place if it's already queued, else appends it to its friend's queue
+        String key = getDownloadKey(download.mFriendId, download.mResourceId);
+        downloads.mByKey.put(key, download);
+        List<Download> queue = downloads.mQueuesByFriendId.get(download.mFriendId);
+        queue = (queue == null) ? new ArrayList<Download>() : new ArrayList<Download>(queue);
+        boolean found = false;
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).mResourceId.equals(download.mResourceId)) {
+                queue.set(i, download);
+                found = true;
+                break;
             }
         }
-        throw new DataNotFoundError();
+        if (!found) {
+            queue.add(download);
+        }
+        downloads.mQueuesByFriendId.put(download.mFriendId, queue);
     }
 
-    public synchronized Download getNextInProgressDownload(String friendId) throws Utils.ApplicationError, DataNotFoundError {
-        initDownloads();
-        for (Download download : mDownloads) {
-            if (download.mFriendId.equals(friendId) && download.mState == Download.State.IN_PROGRESS) {
-                return download;
+    private static void dequeueDownloadHelper(DownloadQueues downloads, Download download) {
+        downloads.mByKey.remove(getDownloadKey(download.mFriendId, download.mResourceId));
+        List<Download> queue = new ArrayList<Download>(downloads.mQueuesByFriendId.get(download.mFriendId));
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).mResourceId.equals(download.mResourceId)) {
+                queue.remove(i);
+                break;
             }
         }
-        throw new DataNotFoundError();
+        if (queue.size() > 0) {
+            downloads.mQueuesByFriendId.put(download.mFriendId, queue);
+        } else {
+            downloads.mQueuesByFriendId.remove(download.mFriendId);
+        }
+    }
+
+    public Download getDownload(String friendId, String resourceId) throws Utils.ApplicationError, DataNotFoundError {
+        String key = getDownloadKey(friendId, resourceId);
+        Download download = getDownloadsSnapshot().mByKey.get(key);
+        if (download == null) {
+            ConcurrentHashMap<String, Download> archivedDownloads = mArchivedDownloads;
+            if (archivedDownloads == null) {
+                archivedDownloads = initDownloadArchive();
+            }
+            download = archivedDownloads.get(key);
+        }
+        if (download == null) {
+            throw new DataNotFoundError();
+        }
+        return download;
+    }
+
+    public Download getNextInProgressDownload(String friendId) throws Utils.ApplicationError, DataNotFoundError {
+        List<Download> queue = getDownloadsSnapshot().mQueuesByFriendId.get(friendId);
+        if (queue == null || queue.size() == 0) {
+            throw new DataNotFoundError();
+        }
+        return queue.get(0);
     }
 
     public synchronized void addDownload(String friendId, Resource resource) throws Utils.ApplicationError, DataAlreadyExistsError {
@@ -755,38 +1575,41 @@ public class Data {
         Friend friend = getFriendById(friendId);
         // TODO: double check resource ID is from valid resource in friend message?
         Download download = new Download(friendId, resource.mId, resource.mMimeType, resource.mSize, Download.State.IN_PROGRESS);
-        List<Download> newDownloads = new ArrayList<Download>(mDownloads);
-        newDownloads.add(download);
-        writeFile(DOWNLOADS_FILENAME, Json.toJson(newDownloads));
-        mDownloads.add(download);
+        getStore().putDownload(download);
+        DownloadQueues downloads = new DownloadQueues(mDownloads);
+        enqueueDownloadHelper(downloads, download);
+        mDownloads = downloads;
+        recordChange(null, Collection.DOWNLOADS);
         Log.addEntry(LOG_TAG, "added download from friend: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.AddedDownload(friendId, resource.mId));
-    }
-
-    private void updateDownloadHelper(List<Download> list, Download download) throws DataNotFoundError {
-        boolean found = false;
-        for (int i = 0; i < list.size(); i++) {
-            if (list.get(i).mFriendId.equals(download.mFriendId) && list.get(i).mResourceId.equals(download.mResourceId)) {
-                list.set(i, download);
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            throw new DataNotFoundError();
-        }
+        postEvent(new Events.AddedDownload(friendId, resource.mId));
     }
 
     public synchronized void updateDownloadState(String friendId, String resourceId, Download.State state) throws Utils.ApplicationError, DataNotFoundError {
         initDownloads();
+        initDownloadArchive();
         Friend friend = getFriendById(friendId);
         Download download = getDownload(friendId, resourceId);
         Download newDownload = new Download(download.mFriendId, download.mResourceId, download.mMimeType, download.mSize, state);
-
-        List<Download> newDownloads = new ArrayList<Download>(mDownloads);
-        updateDownloadHelper(newDownloads, newDownload);
-        writeFile(DOWNLOADS_FILENAME, Json.toJson(newDownloads));
-        updateDownloadHelper(mDownloads, newDownload);
+        String key = getDownloadKey(friendId, resourceId);
+
+        // In-progress downloads are queued; cancelled and completed downloads are archived
+        boolean wasArchived = (download.mState != Download.State.IN_PROGRESS);
+        boolean isArchived = (state != Download.State.IN_PROGRESS);
+        getStore().putDownload(newDownload);
+        DownloadQueues downloads = new DownloadQueues(mDownloads);
+        if (isArchived) {
+            mArchivedDownloads.put(key, newDownload);
+            if (!wasArchived) {
+                dequeueDownloadHelper(downloads, download);
+            }
+        } else {
+            enqueueDownloadHelper(downloads, newDownload);
+            if (wasArchived) {
+                mArchivedDownloads.remove(key);
+            }
+        }
+        mDownloads = downloads;
+        recordChange(null, Collection.DOWNLOADS);
 
         if (state == Download.State.IN_PROGRESS) {
             Log.addEntry(LOG_TAG, "resumed download from friend: " + friend.mPublicIdentity.mNickname);
@@ -795,72 +1618,11 @@ public class Data {
         } else if (state == Download.State.COMPLETE) {
             Log.addEntry(LOG_TAG, "completed download from friend: " + friend.mPublicIdentity.mNickname);
         }
-        // *** TODO: engine stop downloading on cancel
         // *** TODO: delete download file on cancel
-        //Events.post(new Events.UpdatedDownloadState());
-    }
-
-    private static String readFile(String filename) throws Utils.ApplicationError, DataNotFoundError {
-        FileInputStream inputStream = null;
-        try {
-            File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-            String commitFilename = filename + COMMIT_FILENAME_SUFFIX;
-            File commitFile = new File(directory, commitFilename);
-            File file = new File(directory, filename);
-            replaceFileIfExists(commitFile, file);
-            inputStream = new FileInputStream(file);
-            return Utils.readInputStreamToString(inputStream);
-        } catch (FileNotFoundException e) {
-            throw new DataNotFoundError();
-        } catch (IOException e) {
-            throw new Utils.ApplicationError(LOG_TAG, e);
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                }
-            }
-        }
-    }
-
-    private static void writeFile(String filename, String value) throws Utils.ApplicationError {
-        FileOutputStream outputStream = null;
-        try {
-            File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-            String commitFilename = filename + COMMIT_FILENAME_SUFFIX;
-            File commitFile = new File(directory, commitFilename);
-            File file = new File(directory, filename);
-            outputStream = new FileOutputStream(commitFile);
-            outputStream.write(value.getBytes());
-            outputStream.close();
-            replaceFileIfExists(commitFile, file);
-        } catch (IOException e) {
-            throw new Utils.ApplicationError(LOG_TAG, e);
-        } finally {
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                }
-            }
-        }
-    }
-
-    private static void replaceFileIfExists(File commitFile, File file) throws IOException {
-        if (commitFile.exists()) {
-            file.delete();
-            commitFile.renameTo(file);
-        }
-    }
-
-    private static void deleteFile(String filename) throws Utils.ApplicationError {
-        File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-        File file = new File(directory, filename);
-        if (!file.delete()) {
-            if (file.exists()) {
-                throw new Utils.ApplicationError(LOG_TAG, "failed to delete file");
-            }
+        //postEvent(new Events.UpdatedDownloadState());
+        if (state == Download.State.CANCELLED && !wasArchived) {
+            // Engine stops the download, if in progress
+            postEvent(new Events.CancelledDownload(friendId, resourceId));
         }
     }
 }
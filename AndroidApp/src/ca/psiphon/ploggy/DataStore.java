@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Storage backend for Data.
+ *
+ * Data keeps the in-memory snapshots, indexes and caches, and calls the store to persist
+ * each change and to load each data set on first use. Stores only persist; validation,
+ * events and logging stay in Data.
+ *
+ * Writes are serialized by the caller. Reads may run concurrently with each other and with
+ * a write, and see the data either before or after that write.
+ */
+public interface DataStore {
+
+    public void open() throws Utils.ApplicationError;
+
+    public void close();
+
+    public boolean isEmpty() throws Utils.ApplicationError;
+
+    public void reset() throws Utils.ApplicationError;
+
+    public Data.Self getSelf() throws Utils.ApplicationError, Data.DataNotFoundError;
+
+    public void putSelf(Data.Self self) throws Utils.ApplicationError;
+
+    public Data.Status getSelfStatus() throws Utils.ApplicationError, Data.DataNotFoundError;
+
+    public void putSelfStatusLocation(Data.Location location) throws Utils.ApplicationError;
+
+    // Adds the message as the most recent; only the most recent Protocol.MAX_MESSAGE_COUNT are kept
+    public void addSelfStatusMessage(Data.Message message) throws Utils.ApplicationError;
+
+    public void removeSelfStatus() throws Utils.ApplicationError;
+
+    public List<Data.Friend> getFriends() throws Utils.ApplicationError;
+
+    public void putFriends(List<Data.Friend> friends) throws Utils.ApplicationError;
+
+    // Also removes the friend's status
+    public void removeFriend(String friendId) throws Utils.ApplicationError;
+
+    public Data.Status getFriendStatus(String friendId) throws Utils.ApplicationError, Data.DataNotFoundError;
+
+    public void putFriendStatus(String friendId, Data.Status status) throws Utils.ApplicationError;
+
+    public List<Data.LocalResource> getLocalResources() throws Utils.ApplicationError;
+
+    public void putLocalResources(List<Data.LocalResource> localResources) throws Utils.ApplicationError;
+
+    // In the order added
+    public List<Data.Download> getInProgressDownloads() throws Utils.ApplicationError;
+
+    public List<Data.Download> getInProgressDownloads(String friendId) throws Utils.ApplicationError;
+
+    // Cancelled and completed downloads
+    public List<Data.Download> getFinishedDownloads() throws Utils.ApplicationError;
+
+    // Replaces any existing download with the same friend and resource ID
+    public void putDownload(Data.Download download) throws Utils.ApplicationError;
+
+    // Removes all of the friend's downloads, in progress and finished
+    public void removeDownloads(String friendId) throws Utils.ApplicationError;
+
+    // Message history, as in MessageStore; self is one of the authors
+    public List<String> getMessageHistoryAuthors() throws Utils.ApplicationError;
+
+    public boolean hasMessageHistory(String author) throws Utils.ApplicationError;
+
+    public void appendMessageHistory(String author, List<Data.Message> messages) throws Utils.ApplicationError;
+
+    public List<Data.Message> getMessageHistory(String author, Date from, Date to, int limit) throws Utils.ApplicationError;
+
+    public void removeMessageHistory(String author) throws Utils.ApplicationError;
+}
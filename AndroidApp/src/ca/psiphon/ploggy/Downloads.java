@@ -50,6 +50,13 @@ public class Downloads {
         }
     }
 
+    public static void deleteDownloadFile(Data.Download download) {
+        File file = getDownloadFile(download);
+        if (!file.delete() && file.exists()) {
+            Log.addEntry(LOG_TAG, "failed to delete download file");
+        }
+    }
+
     public static File getDownloadFile(Data.Download download) {
         File directory = Utils.getApplicationContext().getDir(DOWNLOADS_DIRECTORY, Context.MODE_PRIVATE);
         directory.mkdirs();
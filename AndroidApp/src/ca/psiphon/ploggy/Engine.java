@@ -30,14 +30,15 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Pair;
 import ca.psiphon.ploggy.widgets.TimePickerPreference;
@@ -50,9 +51,11 @@ import com.squareup.otto.Subscribe;
  * The Engine:
  * - schedules friend status push/pulls
  * - schedules friend resource downloads
- * - maintains a worker thread pool for background tasks (pushing/pulling
- *   friends and handling friend requests
+ * - maintains a prioritized worker pool for background tasks (pushing/pulling
+ *   friends and handling friend requests); see TaskExecutor
  * - runs the local location monitor
+ * - runs the battery monitor, and in battery saver mode stretches poll and location
+ *   fix intervals, defers downloads, and batches pulls and pushes into shared wake ups
  * - (re)-starts and stops the local web server and Tor Hidden Service to
  *   handle requests from friends
  *
@@ -66,20 +69,62 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
     private final Context mContext;
     private final SharedPreferences mSharedPreferences;
     private final Handler mHandler;
-    private Runnable mRestartTask;
+    private Runnable mApplyPreferencesTask;
+    private final HashSet<String> mChangedPreferenceKeys;
     private Runnable mPollFriendsTask;
-    private ExecutorService mTaskThreadPool;
-    private ExecutorService mPeerRequestThreadPool;
+    // Set while the friend poll is running; read by worker threads
+    private volatile FriendPollScheduler mFriendPollScheduler;
+    private Runnable mFlushFriendTimestampsTask;
+    private Runnable mPushToFriendsTask;
+    // When the earliest self status update not yet pushed was made, or -1
+    private long mPendingPushSinceTime;
+    // Read without the Engine monitor by submitWebRequestTask
+    private volatile TaskExecutor mTaskExecutor;
     enum FriendTaskType {PUSH_TO, PULL_FROM, DOWNLOAD_FROM};
-    private EnumMap<FriendTaskType, HashMap<String, Runnable>> mFriendTasks;
+    // Each submitted friend task has a Future and a CancellationSignal. Cancelling the
+    // signal aborts the task's web request in progress and stops any further work.
+    private EnumMap<FriendTaskType, HashMap<String, CancellationSignal>> mFriendTaskCancellationSignals;
     private EnumMap<FriendTaskType, HashMap<String, Future<?>>> mFriendTaskFutures;
+    // Friends with a push submitted while a push to them was already running
+    private HashSet<String> mResubmitPushToFriends;
+    // Self status version each friend last received, by push or pull
+    private final ConcurrentHashMap<String, Long> mSentSelfStatusVersions;
+    // Status encoding each friend's last pull response used; binary or compressed pushes only
+    // go to friends known to accept them
+    private final ConcurrentHashMap<String, StatusEncoding> mFriendStatusEncodings;
+    // Resource each friend's running download task is downloading
+    private final ConcurrentHashMap<String, String> mFriendDownloadResourceIds;
     private LocationMonitor mLocationMonitor;
+    private BatteryMonitor mBatteryMonitor;
+    // Set by UpdatedPowerMode events; read by worker threads
+    private volatile boolean mBatterySaver;
     private WebServer mWebServer;
     private TorWrapper mTorWrapper;
 
-    private static final int PREFERENCE_CHANGE_RESTART_DELAY_IN_MILLISECONDS = 5*1000;
+    private static class StatusEncoding {
+        final String mMimeType;
+        final boolean mCompressed;
 
-    private static final int THREAD_POOL_SIZE = 30;
+        StatusEncoding(String mimeType, boolean compressed) {
+            mMimeType = mimeType;
+            mCompressed = compressed;
+        }
+    }
+
+    private static final int PREFERENCE_CHANGE_APPLY_DELAY_IN_MILLISECONDS = 5*1000;
+
+    // Self status updates are pushed once no further update has followed for
+    // PUSH_COALESCE_DELAY_IN_MILLISECONDS, so bursts (e.g., location fixes) are sent
+    // as one push. Continuous updates are pushed at least every MAX_PUSH_DELAY_IN_MILLISECONDS.
+    private static final int PUSH_COALESCE_DELAY_IN_MILLISECONDS = 2*1000;
+    private static final int MAX_PUSH_DELAY_IN_MILLISECONDS = 10*1000;
+
+    // In battery saver mode, friend poll and location fix intervals are stretched by this factor
+    private static final int BATTERY_SAVER_INTERVAL_MULTIPLIER = 4;
+
+    // Bounds how much friend last sent/received timestamp history is lost when
+    // the process is killed without a clean stop.
+    private static final int FRIEND_TIMESTAMPS_FLUSH_PERIOD_IN_MILLISECONDS = 60*1000;
 
     // FRIEND_REQUEST_DELAY_IN_SECONDS is intended to compensate for
     // peer hidden service publish latency. Use this when scheduling requests
@@ -91,6 +136,11 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         Utils.initSecureRandom();
         mContext = context;
         mHandler = new Handler();
+        mChangedPreferenceKeys = new HashSet<String>();
+        mPendingPushSinceTime = -1;
+        mSentSelfStatusVersions = new ConcurrentHashMap<String, Long>();
+        mFriendStatusEncodings = new ConcurrentHashMap<String, StatusEncoding>();
+        mFriendDownloadResourceIds = new ConcurrentHashMap<String, String>();
         // TODO: distinct instance of preferences for each persona
         // e.g., getSharedPreferencesName("persona1");
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
@@ -99,15 +149,25 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
     public synchronized void start() throws Utils.ApplicationError {
         Log.addEntry(LOG_TAG, "starting...");
         Events.register(this);
-        mTaskThreadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        // Using a distinct worker thread pool and queue to manage peer
-        // requests, so local tasks are not blocked by peer actions.
-        mPeerRequestThreadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        mFriendTasks = new EnumMap<FriendTaskType, HashMap<String, Runnable>>(FriendTaskType.class);
+        // Peer requests share the pool with local tasks, at the highest priority, and
+        // local tasks are limited so they can't block peer requests.
+        mTaskExecutor = new TaskExecutor();
+        mFriendTaskCancellationSignals = new EnumMap<FriendTaskType, HashMap<String, CancellationSignal>>(FriendTaskType.class);
         mFriendTaskFutures = new EnumMap<FriendTaskType, HashMap<String, Future<?>>>(FriendTaskType.class);
+        mResubmitPushToFriends = new HashSet<String>();
+        // Load data in the background so the first reader, often the UI, doesn't block on it
+        submitTask(TaskExecutor.TaskClass.BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                Data.getInstance().warmUp();
+            }
+        });
+        mBatteryMonitor = new BatteryMonitor(this);
+        mBatteryMonitor.start();
         mLocationMonitor = new LocationMonitor(this);
         mLocationMonitor.start();
         startHiddenService();
+        startFlushFriendTimestamps();
         mSharedPreferences.registerOnSharedPreferenceChangeListener(this);
         Log.addEntry(LOG_TAG, "started");
     }
@@ -117,64 +177,155 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
         Events.unregister(this);
         stopFriendPoll();
+        stopPushToFriends();
+        stopFlushFriendTimestamps();
         stopHiddenService();
         if (mLocationMonitor != null) {
             mLocationMonitor.stop();
             mLocationMonitor = null;
         }
-        if (mFriendTasks != null) {
-            mFriendTasks.clear();
-            mFriendTasks = null;
+        if (mBatteryMonitor != null) {
+            mBatteryMonitor.stop();
+            mBatteryMonitor = null;
+        }
+        mBatterySaver = false;
+        // Release running friend tasks' Tor streams and worker threads now, rather than
+        // waiting on web request timeouts in executor shutdown
+        cancelAllFriendTasks();
+        if (mFriendTaskCancellationSignals != null) {
+            mFriendTaskCancellationSignals.clear();
+            mFriendTaskCancellationSignals = null;
         }
         if (mFriendTaskFutures != null) {
             mFriendTaskFutures.clear();
             mFriendTaskFutures = null;
         }
-        if (mTaskThreadPool != null) {
-            Utils.shutdownExecutorService(mTaskThreadPool);
-            mTaskThreadPool = null;
+        if (mResubmitPushToFriends != null) {
+            mResubmitPushToFriends.clear();
+            mResubmitPushToFriends = null;
         }
-        if (mPeerRequestThreadPool != null) {
-            Utils.shutdownExecutorService(mPeerRequestThreadPool);
-            mPeerRequestThreadPool = null;
+        if (mTaskExecutor != null) {
+            mTaskExecutor.logMetrics();
+            Utils.shutdownExecutorService(mTaskExecutor);
+            mTaskExecutor = null;
         }
+        // Flush after worker threads are shut down, to capture their final timestamp updates
+        flushFriendTimestamps();
         Log.addEntry(LOG_TAG, "stopped");
     }
 
     @Override
     public synchronized void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        // Restart engine to apply changed preferences. Delay restart until user inputs are idle.
-        // (This idle delay is important due to how SeekBarPreferences trigger onSharedPreferenceChanged
-        // continuously as the user slides the seek bar). Delayed restart runs on main thread.
-        if (mRestartTask == null) {
-            mRestartTask = new Runnable() {
+        // Apply changed preferences once user inputs are idle. (This idle delay is important due to
+        // how SeekBarPreferences trigger onSharedPreferenceChanged continuously as the user slides
+        // the seek bar). Delayed apply runs on main thread.
+        mChangedPreferenceKeys.add(key);
+        if (mApplyPreferencesTask == null) {
+            mApplyPreferencesTask = new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        stop();
-                        start();
-                    } catch (Utils.ApplicationError e) {
-                        Log.addEntry(LOG_TAG, "failed to restart engine after preference change");
-                    }
+                    applyChangedPreferences();
                 }
             };
         } else {
-            mHandler.removeCallbacks(mRestartTask);
+            mHandler.removeCallbacks(mApplyPreferencesTask);
         }
-        mHandler.postDelayed(mRestartTask, PREFERENCE_CHANGE_RESTART_DELAY_IN_MILLISECONDS);
+        mHandler.postDelayed(mApplyPreferencesTask, PREFERENCE_CHANGE_APPLY_DELAY_IN_MILLISECONDS);
     }
 
-    public synchronized Future<?> submitTask(Runnable task) {
-        if (mTaskThreadPool != null) {
-            return mTaskThreadPool.submit(task);
+    private synchronized void applyChangedPreferences() {
+        // Changes are applied in place, to only the affected components:
+        // - pull frequency: reschedule friend polls
+        // - location fix frequency and period: reschedule the location monitor
+        // - files over Wi-Fi only: when relaxed, resume downloads now
+        // - battery saver enabled and level: re-evaluate the power mode
+        // - geocoder, location precision and location sharing limits are read on each use,
+        //   so need no action
+        // - mobile data use: restart the transport (Tor and the web server) only
+        // Any other change restarts the whole engine.
+        if (mTaskExecutor == null) {
+            // Engine stopped
+            mChangedPreferenceKeys.clear();
+            return;
+        }
+        HashSet<String> changedKeys = new HashSet<String>(mChangedPreferenceKeys);
+        mChangedPreferenceKeys.clear();
+        try {
+            boolean restart = false;
+            boolean restartTransport = false;
+            for (String key : changedKeys) {
+                if (key.equals(mContext.getString(R.string.preferenceLocationPullFrequencyInMinutes))) {
+                    FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+                    if (friendPollScheduler != null) {
+                        friendPollScheduler.setBaseInterval(getFriendPollBaseInterval());
+                        schedulePollFriends();
+                    }
+                } else if (key.equals(mContext.getString(R.string.preferenceLocationFixFrequencyInMinutes))
+                        || key.equals(mContext.getString(R.string.preferenceLocationFixPeriodInSeconds))) {
+                    if (mLocationMonitor != null) {
+                        mLocationMonitor.reschedule();
+                    }
+                } else if (key.equals(mContext.getString(R.string.preferenceExchangeFilesWifiOnly))) {
+                    if (!getBooleanPreference(R.string.preferenceExchangeFilesWifiOnly)) {
+                        for (Data.Friend friend : Data.getInstance().getFriends()) {
+                            submitFriendTask(FriendTaskType.DOWNLOAD_FROM, friend.mId);
+                        }
+                    }
+                } else if (key.equals(mContext.getString(R.string.preferenceEnableBatterySaver))
+                        || key.equals(mContext.getString(R.string.preferenceBatterySaverLevel))) {
+                    if (mBatteryMonitor != null) {
+                        mBatteryMonitor.update();
+                    }
+                } else if (key.equals(mContext.getString(R.string.preferenceUseMobileData))) {
+                    restartTransport = true;
+                } else if (!isPreferenceReadOnUse(key)) {
+                    restart = true;
+                }
+            }
+            if (restart) {
+                stop();
+                start();
+            } else if (restartTransport) {
+                // Friend poll restarts once the new Tor circuit is established
+                startHiddenService();
+            }
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to apply preference change");
+        }
+    }
+
+    private boolean isPreferenceReadOnUse(String key) {
+        int[] keyResIDs = new int[] {
+                R.string.preferenceUseGeoCoder,
+                R.string.preferenceLimitLocationPrecision,
+                R.string.preferenceLocationPrecisionInMeters,
+                R.string.preferenceAutomaticLocationSharing,
+                R.string.preferenceLimitLocationSharingTime,
+                R.string.preferenceLimitLocationSharingTimeNotBefore,
+                R.string.preferenceLimitLocationSharingTimeNotAfter,
+                R.string.preferenceLimitLocationSharingDay};
+        for (int keyResID : keyResIDs) {
+            if (key.equals(mContext.getString(keyResID))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns null when the task is rejected; see TaskExecutor
+    public synchronized Future<?> submitTask(TaskExecutor.TaskClass taskClass, Runnable task) {
+        if (mTaskExecutor != null) {
+            return mTaskExecutor.submit(taskClass, task);
         }
         return null;
     }
 
+    // Note: not synchronized, as this blocks while the peer request queue is full
     @Override
-    public synchronized void submitWebRequestTask(Runnable task) {
-        if (mPeerRequestThreadPool != null) {
-            mPeerRequestThreadPool.submit(task);
+    public void submitWebRequestTask(Runnable task) {
+        TaskExecutor taskExecutor = mTaskExecutor;
+        if (taskExecutor != null) {
+            taskExecutor.submitAndWait(TaskExecutor.TaskClass.PEER_REQUEST, task);
         }
     }
 
@@ -182,30 +333,19 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         stopHiddenService();
 
         Data.Self self = Data.getInstance().getSelf();
-        List<String> friendCertificates = new ArrayList<String>();
-        for (Data.Friend friend : Data.getInstance().getFriends()) {
-            friendCertificates.add(friend.mPublicIdentity.mX509Certificate);
-        }
         mWebServer = new WebServer(
                 this,
                 new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
-                friendCertificates);
+                getFriendCertificates());
         try {
             mWebServer.start();
         } catch (IOException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         }
 
-        List<TorWrapper.HiddenServiceAuth> hiddenServiceAuths = new ArrayList<TorWrapper.HiddenServiceAuth>();
-        for (Data.Friend friend : Data.getInstance().getFriends()) {
-            hiddenServiceAuths.add(
-                    new TorWrapper.HiddenServiceAuth(
-                            friend.mPublicIdentity.mHiddenServiceHostname,
-                            friend.mPublicIdentity.mHiddenServiceAuthCookie));
-        }
         mTorWrapper = new TorWrapper(
                 TorWrapper.Mode.MODE_RUN_SERVICES,
-                hiddenServiceAuths,
+                getFriendHiddenServiceAuths(),
                 new HiddenService.KeyMaterial(
                         self.mPublicIdentity.mHiddenServiceHostname,
                         self.mPublicIdentity.mHiddenServiceAuthCookie,
@@ -216,6 +356,42 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         // Note: startFriendPoll is deferred until onTorCircuitEstablished
     }
 
+    private void updateHiddenServiceFriends() throws Utils.ApplicationError {
+        // Apply the new set of friends to the running web server trust manager and Tor
+        // client auth, without restarting either. Falls back to a restart when Tor isn't
+        // running yet, or the update fails.
+        if (mWebServer == null || mTorWrapper == null) {
+            startHiddenService();
+            return;
+        }
+        try {
+            mWebServer.updateFriendCertificates(getFriendCertificates());
+            mTorWrapper.updateHiddenServiceAuth(getFriendHiddenServiceAuths());
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to update hidden service friends; restarting");
+            startHiddenService();
+        }
+    }
+
+    private List<String> getFriendCertificates() throws Utils.ApplicationError {
+        List<String> friendCertificates = new ArrayList<String>();
+        for (Data.Friend friend : Data.getInstance().getFriends()) {
+            friendCertificates.add(friend.mPublicIdentity.mX509Certificate);
+        }
+        return friendCertificates;
+    }
+
+    private List<TorWrapper.HiddenServiceAuth> getFriendHiddenServiceAuths() throws Utils.ApplicationError {
+        List<TorWrapper.HiddenServiceAuth> hiddenServiceAuths = new ArrayList<TorWrapper.HiddenServiceAuth>();
+        for (Data.Friend friend : Data.getInstance().getFriends()) {
+            hiddenServiceAuths.add(
+                    new TorWrapper.HiddenServiceAuth(
+                            friend.mPublicIdentity.mHiddenServiceHostname,
+                            friend.mPublicIdentity.mHiddenServiceAuthCookie));
+        }
+        return hiddenServiceAuths;
+    }
+
     private void stopHiddenService() {
         // Friend poll depends on Tor wrapper, so stop it first
         stopFriendPoll();
@@ -236,45 +412,198 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     private void startFriendPoll() throws Utils.ApplicationError {
         stopFriendPoll();
-        // Start a recurring timer with initial delay
-        // FRIEND_REQUEST_DELAY_IN_MILLISECONDS and subsequent delay
-        // preferenceLocationPullFrequencyInMinutes. The timer triggers
-        // friend pulls and downloads.
-        final int finalDelay = getIntPreference(R.string.preferenceLocationPullFrequencyInMinutes)*60*1000;
+        // Each friend is polled on its own schedule; see FriendPollScheduler. First polls
+        // are after FRIEND_REQUEST_DELAY_IN_MILLISECONDS, and subsequent polls are based on
+        // preferenceLocationPullFrequencyInMinutes. Polls trigger friend pulls and downloads.
+        FriendPollScheduler friendPollScheduler = new FriendPollScheduler(getFriendPollBaseInterval());
+        for (Data.Friend friend : Data.getInstance().getFriends()) {
+            friendPollScheduler.addFriend(friend.mId, FRIEND_REQUEST_DELAY_IN_MILLISECONDS);
+        }
         if (mPollFriendsTask == null) {
             mPollFriendsTask = new Runnable() {
+                @Override
+                public void run() {
+                    pollFriends();
+                }
+            };
+        }
+        mFriendPollScheduler = friendPollScheduler;
+        schedulePollFriends();
+    }
+
+    private void stopFriendPoll() {
+        mFriendPollScheduler = null;
+        if (mPollFriendsTask != null) {
+            mHandler.removeCallbacks(mPollFriendsTask);
+        }
+    }
+
+    private long getFriendPollBaseInterval() throws Utils.ApplicationError {
+        long baseInterval = getIntPreference(R.string.preferenceLocationPullFrequencyInMinutes)*60*1000L;
+        return mBatterySaver ? baseInterval*BATTERY_SAVER_INTERVAL_MULTIPLIER : baseInterval;
+    }
+
+    private void schedulePollFriends() {
+        // Sets the poll timer for the earliest friend due time. Called from worker threads
+        // as poll results change the schedule, so reads mFriendPollScheduler only once.
+        FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+        if (friendPollScheduler == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mPollFriendsTask);
+        long nextDueTime = friendPollScheduler.getNextDueTime();
+        if (nextDueTime != -1) {
+            mHandler.postDelayed(mPollFriendsTask, Math.max(0, nextDueTime - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    private void reportFriendPollResult(String friendId, boolean succeeded, boolean active) {
+        FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+        if (friendPollScheduler == null) {
+            return;
+        }
+        if (!succeeded) {
+            friendPollScheduler.reportFailure(friendId);
+        } else if (active) {
+            friendPollScheduler.reportActivity(friendId);
+        } else {
+            friendPollScheduler.reportSuccess(friendId);
+        }
+        schedulePollFriends();
+    }
+
+    private void startFlushFriendTimestamps() {
+        stopFlushFriendTimestamps();
+        // Recurring timer which persists friend last sent/received timestamps,
+        // which Data only updates in memory. Flush runs on a worker thread.
+        if (mFlushFriendTimestampsTask == null) {
+            mFlushFriendTimestampsTask = new Runnable() {
+                @Override
+                public void run() {
+                    submitTask(TaskExecutor.TaskClass.BACKGROUND, new Runnable() {
+                        @Override
+                        public void run() {
+                            flushFriendTimestamps();
+                        }
+                    });
+                    mHandler.postDelayed(this, FRIEND_TIMESTAMPS_FLUSH_PERIOD_IN_MILLISECONDS);
+                }
+            };
+        }
+        mHandler.postDelayed(mFlushFriendTimestampsTask, FRIEND_TIMESTAMPS_FLUSH_PERIOD_IN_MILLISECONDS);
+    }
+
+    private void stopFlushFriendTimestamps() {
+        if (mFlushFriendTimestampsTask != null) {
+            mHandler.removeCallbacks(mFlushFriendTimestampsTask);
+        }
+    }
+
+    private void flushFriendTimestamps() {
+        try {
+            Data.getInstance().flushFriendTimestamps();
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to flush friend timestamps");
+        }
+    }
+
+    private void pollFriends() {
+        FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+        if (friendPollScheduler == null) {
+            return;
+        }
+        // Reuses each friend's pull schedule as a retry schedule for downloads in case of failure.
+        // In battery saver mode, downloads are deferred until the mode ends, and polls due soon
+        // and any deferred push go out now, while the device is awake.
+        boolean batterySaver = mBatterySaver;
+        for (String friendId : friendPollScheduler.takeDueFriends(batterySaver)) {
+            submitFriendTask(FriendTaskType.PULL_FROM, friendId);
+            if (!batterySaver) {
+                submitFriendTask(FriendTaskType.DOWNLOAD_FROM, friendId);
+            }
+        }
+        if (batterySaver) {
+            pushDeferredToFriends();
+        }
+        schedulePollFriends();
+    }
+
+    private static boolean isNewFriendStatus(Data.Status previousStatus, Data.Status status) {
+        // Whether the friend has posted a message or moved since the previous status
+        if (previousStatus == null) {
+            return true;
+        }
+        Date previousMessageTimestamp = previousStatus.mMessages.size() > 0 ? previousStatus.mMessages.get(0).mTimestamp : null;
+        Date messageTimestamp = status.mMessages.size() > 0 ? status.mMessages.get(0).mTimestamp : null;
+        Date previousLocationTimestamp = previousStatus.mLocation != null ? previousStatus.mLocation.mTimestamp : null;
+        Date locationTimestamp = status.mLocation != null ? status.mLocation.mTimestamp : null;
+        return !timestampsEqual(previousMessageTimestamp, messageTimestamp)
+                || !timestampsEqual(previousLocationTimestamp, locationTimestamp);
+    }
+
+    private static boolean timestampsEqual(Date a, Date b) {
+        // The same status may arrive as legacy JSON, with second resolution timestamps,
+        // or in binary, with milliseconds
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Data.compareMessageTimestamps(a, b) == 0;
+    }
+
+    private void schedulePushToFriends() {
+        // Debounce: each update restarts the coalesce delay, bounded by the max delay
+        // since the earliest pending update. The push itself sends the latest status.
+        // In battery saver mode, the push is deferred to the next friend poll wake up.
+        long now = SystemClock.elapsedRealtime();
+        if (mPendingPushSinceTime == -1) {
+            mPendingPushSinceTime = now;
+        }
+        if (mBatterySaver) {
+            if (mPushToFriendsTask != null) {
+                mHandler.removeCallbacks(mPushToFriendsTask);
+            }
+            return;
+        }
+        long delay = Math.min(
+                PUSH_COALESCE_DELAY_IN_MILLISECONDS,
+                mPendingPushSinceTime + MAX_PUSH_DELAY_IN_MILLISECONDS - now);
+        if (mPushToFriendsTask == null) {
+            mPushToFriendsTask = new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        pollFriends();
+                        pushToFriends();
                     } catch (Utils.ApplicationError e) {
-                        Log.addEntry(LOG_TAG, "failed to poll friends");
-                    } finally {
-                        mHandler.postDelayed(this, finalDelay);
+                        Log.addEntry(LOG_TAG, "failed push to friends after self status updated");
                     }
                 }
             };
         } else {
-            mHandler.removeCallbacks(mPollFriendsTask);
+            mHandler.removeCallbacks(mPushToFriendsTask);
         }
-        mHandler.postDelayed(mPollFriendsTask, FRIEND_REQUEST_DELAY_IN_MILLISECONDS);
+        mHandler.postDelayed(mPushToFriendsTask, Math.max(0, delay));
     }
 
-    private void stopFriendPoll() {
-        if (mPollFriendsTask != null) {
-            mHandler.removeCallbacks(mPollFriendsTask);
+    private void stopPushToFriends() {
+        if (mPushToFriendsTask != null) {
+            mHandler.removeCallbacks(mPushToFriendsTask);
         }
+        mPendingPushSinceTime = -1;
     }
 
-    private void pollFriends() throws Utils.ApplicationError {
-        // Reuses pull frequency as a retry frequency for downloads in case of failure
-        for (Data.Friend friend : Data.getInstance().getFriends()) {
-            submitFriendTask(FriendTaskType.PULL_FROM, friend.mId);
-            submitFriendTask(FriendTaskType.DOWNLOAD_FROM, friend.mId);
+    private synchronized void pushDeferredToFriends() {
+        if (mPendingPushSinceTime != -1) {
+            try {
+                pushToFriends();
+            } catch (Utils.ApplicationError e) {
+                Log.addEntry(LOG_TAG, "failed deferred push to friends");
+            }
         }
     }
 
-    private void pushToFriends() throws Utils.ApplicationError {
+    private synchronized void pushToFriends() throws Utils.ApplicationError {
+        mPendingPushSinceTime = -1;
+        // Push tasks skip friends which already have the current self status version
         for (Data.Friend friend : Data.getInstance().getFriends()) {
             submitFriendTask(FriendTaskType.PUSH_TO, friend.mId);
         }
@@ -282,52 +611,122 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     private synchronized void submitFriendTask(FriendTaskType taskType, String friendId) {
         // Schedules one push/pull/download per friend at a time.
-        if (mFriendTasks.get(taskType) == null) {
-            mFriendTasks.put(taskType, new HashMap<String, Runnable>());
-        }
-        Runnable task = mFriendTasks.get(taskType).get(friendId);
-        if (task == null) {
-            switch (taskType) {
-            case PUSH_TO:
-                task = makePushToFriendTask(friendId);
-                break;
-            case PULL_FROM:
-                task = makePullFromFriendTask(friendId);
-                break;
-            case DOWNLOAD_FROM:
-                task = makeDownloadFromFriendTask(friendId);
-                break;
-            }
-            mFriendTasks.get(taskType).put(friendId, task);
+        if (mFriendTaskFutures == null) {
+            // Engine stopped
+            return;
         }
         if (mFriendTaskFutures.get(taskType) == null) {
             mFriendTaskFutures.put(taskType, new HashMap<String, Future<?>>());
+            mFriendTaskCancellationSignals.put(taskType, new HashMap<String, CancellationSignal>());
         }
         // If a Future is present, the task is in progress.
         // On completion, tasks remove their Futures from mFriendTaskFutures.
         if (mFriendTaskFutures.get(taskType).get(friendId) != null) {
+            // A running push may be sending an older self status version, so push again
+            // after it completes, to ensure the friend receives the latest version
+            if (taskType == FriendTaskType.PUSH_TO) {
+                mResubmitPushToFriends.add(friendId);
+            }
             return;
         }
-        Future<?> future = submitTask(task);
-        mFriendTaskFutures.get(taskType).put(friendId, future);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        Runnable task = null;
+        TaskExecutor.TaskClass taskClass = null;
+        switch (taskType) {
+        case PUSH_TO:
+            task = makePushToFriendTask(friendId, cancellationSignal);
+            taskClass = TaskExecutor.TaskClass.PUSH;
+            break;
+        case PULL_FROM:
+            task = makePullFromFriendTask(friendId, cancellationSignal);
+            taskClass = TaskExecutor.TaskClass.PULL;
+            break;
+        case DOWNLOAD_FROM:
+            task = makeDownloadFromFriendTask(friendId, cancellationSignal);
+            taskClass = TaskExecutor.TaskClass.DOWNLOAD;
+            break;
+        }
+        // When rejected, due to a full queue, the task is retried on its next push or poll
+        Future<?> future = submitTask(taskClass, task);
+        if (future != null) {
+            mFriendTaskFutures.get(taskType).put(friendId, future);
+            mFriendTaskCancellationSignals.get(taskType).put(friendId, cancellationSignal);
+        }
     }
 
     private synchronized void cancelPendingFriendTask(FriendTaskType taskType, String friendId) {
         // Remove pending (not running) task, if present in queue
+        if (mFriendTaskFutures == null || mFriendTaskFutures.get(taskType) == null) {
+            return;
+        }
         Future<?> future = mFriendTaskFutures.get(taskType).get(friendId);
         if (future != null) {
             if (future.cancel(false)) {
                 mFriendTaskFutures.get(taskType).remove(friendId);
+                mFriendTaskCancellationSignals.get(taskType).remove(friendId);
+            }
+        }
+    }
+
+    private synchronized void cancelFriendTask(FriendTaskType taskType, String friendId) {
+        // Cancels the task whether pending or running. A running task is not interrupted;
+        // its web request is aborted, which fails any blocking connect or read immediately,
+        // and the task checks its signal before further work.
+        if (mFriendTaskFutures == null || mFriendTaskFutures.get(taskType) == null) {
+            return;
+        }
+        Future<?> future = mFriendTaskFutures.get(taskType).remove(friendId);
+        CancellationSignal cancellationSignal = mFriendTaskCancellationSignals.get(taskType).remove(friendId);
+        if (future != null) {
+            future.cancel(false);
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
+        if (taskType == FriendTaskType.PUSH_TO) {
+            mResubmitPushToFriends.remove(friendId);
+        }
+    }
+
+    private synchronized void cancelFriendTasks(String friendId) {
+        for (FriendTaskType taskType : FriendTaskType.values()) {
+            cancelFriendTask(taskType, friendId);
+        }
+    }
+
+    private synchronized void cancelAllFriendTasks() {
+        if (mFriendTaskFutures == null) {
+            return;
+        }
+        for (FriendTaskType taskType : FriendTaskType.values()) {
+            if (mFriendTaskFutures.get(taskType) != null) {
+                for (String friendId : new ArrayList<String>(mFriendTaskFutures.get(taskType).keySet())) {
+                    cancelFriendTask(taskType, friendId);
+                }
             }
         }
     }
 
-    private synchronized void completedFriendTask(FriendTaskType taskType, String friendId) {
+    private synchronized void completedFriendTask(FriendTaskType taskType, String friendId, CancellationSignal cancellationSignal) {
+        if (mFriendTaskFutures == null) {
+            // Engine stopped
+            return;
+        }
+        // A cancelled task may complete after a replacement task has been submitted, so only
+        // remove the entries if they're still this task's
+        if (mFriendTaskCancellationSignals.get(taskType).get(friendId) != cancellationSignal) {
+            return;
+        }
         mFriendTaskFutures.get(taskType).remove(friendId);
+        mFriendTaskCancellationSignals.get(taskType).remove(friendId);
+        if (taskType == FriendTaskType.PUSH_TO && mResubmitPushToFriends.remove(friendId)) {
+            submitFriendTask(taskType, friendId);
+        }
     }
 
-    private Runnable makePushToFriendTask(String friendId) {
+    private Runnable makePushToFriendTask(String friendId, CancellationSignal cancellationSignal) {
         final String finalFriendId = friendId;
+        final CancellationSignal finalCancellationSignal = cancellationSignal;
         return new Runnable() {
             @Override
             public void run() {
@@ -336,79 +735,118 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                     if (!mTorWrapper.isCircuitEstablished()) {
                         return;
                     }
+                    // Skip the push when the friend already has this self status
+                    long selfStatusVersion = data.getVersion(Data.Collection.SELF_STATUS);
+                    Long sentSelfStatusVersion = mSentSelfStatusVersions.get(finalFriendId);
+                    if (sentSelfStatusVersion != null && sentSelfStatusVersion == selfStatusVersion) {
+                        return;
+                    }
                     Data.Self self = data.getSelf();
-                    Data.Status selfStatus = data.getSelfStatus();
                     Data.Friend friend = data.getFriendById(finalFriendId);
+                    StatusEncoding statusEncoding = mFriendStatusEncodings.get(finalFriendId);
+                    if (statusEncoding == null) {
+                        statusEncoding = new StatusEncoding(Protocol.STATUS_JSON_MIME_TYPE, false);
+                    }
+                    Data.EncodedStatus encodedSelfStatus =
+                            data.getEncodedSelfStatus(statusEncoding.mMimeType, statusEncoding.mCompressed);
                     Log.addEntry(LOG_TAG, "push status to: " + friend.mPublicIdentity.mNickname);
-                    WebClient.makeJsonPostRequest(
+                    WebClient.makeStatusPostRequest(
                             new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
                             friend.mPublicIdentity.mX509Certificate,
                             getTorSocksProxyPort(),
                             friend.mPublicIdentity.mHiddenServiceHostname,
                             Protocol.WEB_SERVER_VIRTUAL_PORT,
                             Protocol.PUSH_STATUS_REQUEST_PATH,
-                            Json.toJson(selfStatus));
+                            encodedSelfStatus.mBytes,
+                            encodedSelfStatus.mMimeType,
+                            encodedSelfStatus.mCompressed,
+                            finalCancellationSignal);
+                    mSentSelfStatusVersions.put(finalFriendId, encodedSelfStatus.mVersion);
                     data.updateFriendLastSentStatusTimestamp(finalFriendId);
                 } catch (Data.DataNotFoundError e) {
                     // Friend was deleted while push was enqueued. Ignore error.
                 } catch (Utils.ApplicationError e) {
+                    if (finalCancellationSignal.isCanceled()) {
+                        return;
+                    }
                     try {
                         Log.addEntry(LOG_TAG, "failed to push status to: " + data.getFriendById(finalFriendId).mPublicIdentity.mNickname);
                     } catch (Utils.ApplicationError e2) {
                         Log.addEntry(LOG_TAG, "failed to push status");
                     }
                 } finally {
-                    completedFriendTask(FriendTaskType.PUSH_TO, finalFriendId);
+                    completedFriendTask(FriendTaskType.PUSH_TO, finalFriendId, finalCancellationSignal);
                 }
             }
         };
     }
 
-    private Runnable makePullFromFriendTask(String friendId) {
+    private Runnable makePullFromFriendTask(String friendId, CancellationSignal cancellationSignal) {
         final String finalFriendId = friendId;
+        final CancellationSignal finalCancellationSignal = cancellationSignal;
         return new Runnable() {
             @Override
             public void run() {
                 Data data = Data.getInstance();
                 try {
                     if (!mTorWrapper.isCircuitEstablished()) {
+                        // Friend stays on its provisional schedule
                         return;
                     }
                     Data.Self self = data.getSelf();
                     Data.Friend friend = data.getFriendById(finalFriendId);
+                    Data.Status previousStatus = null;
+                    try {
+                        previousStatus = data.getFriendStatus(finalFriendId);
+                    } catch (Data.DataNotFoundError e) {
+                    }
                     Log.addEntry(LOG_TAG, "pull status from: " + friend.mPublicIdentity.mNickname);
-                    String response = WebClient.makeGetRequest(
+                    WebClient.StatusResponse response = WebClient.makeStatusGetRequest(
                             new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
                             friend.mPublicIdentity.mX509Certificate,
                             getTorSocksProxyPort(),
                             friend.mPublicIdentity.mHiddenServiceHostname,
                             Protocol.WEB_SERVER_VIRTUAL_PORT,
-                            Protocol.PULL_STATUS_REQUEST_PATH);
-                    Data.Status friendStatus = Json.fromJson(response, Data.Status.class);
+                            Protocol.PULL_STATUS_REQUEST_PATH,
+                            finalCancellationSignal);
+                    Data.Status friendStatus = response.mStatus;
+                    mFriendStatusEncodings.put(
+                            finalFriendId,
+                            new StatusEncoding(
+                                    StatusCodec.isBinaryMimeType(response.mMimeType) ?
+                                            Protocol.STATUS_BINARY_MIME_TYPE : Protocol.STATUS_JSON_MIME_TYPE,
+                                    response.mCompressed));
                     data.updateFriendStatus(finalFriendId, friendStatus);
                     data.updateFriendLastReceivedStatusTimestamp(finalFriendId);
+                    reportFriendPollResult(finalFriendId, true, isNewFriendStatus(previousStatus, friendStatus));
                 } catch (Data.DataNotFoundError e) {
                     // Friend was deleted while pull was enqueued. Ignore error.
                     // RemovedFriend should eventually cancel schedule.
                 } catch (Utils.ApplicationError e) {
+                    if (finalCancellationSignal.isCanceled()) {
+                        return;
+                    }
+                    reportFriendPollResult(finalFriendId, false, false);
                     try {
                         Log.addEntry(LOG_TAG, "failed to pull status from: " + data.getFriendById(finalFriendId).mPublicIdentity.mNickname);
                     } catch (Utils.ApplicationError e2) {
                         Log.addEntry(LOG_TAG, "failed to pull status");
                     }
                 } finally {
-                    completedFriendTask(FriendTaskType.PULL_FROM, finalFriendId);
+                    completedFriendTask(FriendTaskType.PULL_FROM, finalFriendId, finalCancellationSignal);
                 }
             }
         };
     }
 
-    private Runnable makeDownloadFromFriendTask(String friendId) {
+    private Runnable makeDownloadFromFriendTask(String friendId, CancellationSignal cancellationSignal) {
         final String finalFriendId = friendId;
+        final CancellationSignal finalCancellationSignal = cancellationSignal;
         return new Runnable() {
             @Override
             public void run() {
                 Data data = Data.getInstance();
+                String downloadResourceId = null;
                 try {
                     if (!mTorWrapper.isCircuitEstablished()) {
                         return;
@@ -418,15 +856,21 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                         // Will retry after next delay period
                         return;
                     }
+                    if (mBatterySaver) {
+                        // Will resume when battery saver mode ends
+                        return;
+                    }
                     Data.Self self = data.getSelf();
                     Data.Friend friend = data.getFriendById(finalFriendId);
-                    while (true) {
+                    while (!finalCancellationSignal.isCanceled()) {
                         Data.Download download = null;
                         try {
                             download = data.getNextInProgressDownload(finalFriendId);
                         } catch (Data.DataNotFoundError e) {
                             break;
                         }
+                        downloadResourceId = download.mResourceId;
+                        mFriendDownloadResourceIds.put(finalFriendId, downloadResourceId);
                         // TODO: there's a potential race condition between getDownloadedSize and
                         // openDownloadResourceForAppending; we may want to lock the file first.
                         // However: currently only one thread downloads files for a given friend.
@@ -446,7 +890,12 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                                     Protocol.DOWNLOAD_REQUEST_PATH,
                                     Arrays.asList(new Pair<String, String>(Protocol.DOWNLOAD_REQUEST_RESOURCE_ID_PARAMETER, download.mResourceId)),
                                     range,
-                                    Downloads.openDownloadResourceForAppending(download));
+                                    Downloads.openDownloadResourceForAppending(download),
+                                    finalCancellationSignal);
+                        }
+                        if (finalCancellationSignal.isCanceled()) {
+                            // Don't overwrite a cancelled download state
+                            break;
                         }
                         data.updateDownloadState(friend.mId, download.mResourceId, Data.Download.State.COMPLETE);
                         // TODO: WebClient post to event bus for download progress (replacing timer-based refreshes...)
@@ -457,13 +906,20 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                     // Friend was deleted while pull was enqueued. Ignore error.
                     // RemovedFriend should eventually cancel schedule.
                 } catch (Utils.ApplicationError e) {
+                    if (finalCancellationSignal.isCanceled()) {
+                        return;
+                    }
                     try {
                         Log.addEntry(LOG_TAG, "failed to download from: " + data.getFriendById(finalFriendId).mPublicIdentity.mNickname);
                     } catch (Utils.ApplicationError e2) {
                         Log.addEntry(LOG_TAG, "failed to download status");
                     }
                 } finally {
-                    completedFriendTask(FriendTaskType.DOWNLOAD_FROM, finalFriendId);
+                    if (downloadResourceId != null) {
+                        // A replacement task may already have set its own entry
+                        mFriendDownloadResourceIds.remove(finalFriendId, downloadResourceId);
+                    }
+                    completedFriendTask(FriendTaskType.DOWNLOAD_FROM, finalFriendId, finalCancellationSignal);
                 }
             }
         };
@@ -478,6 +934,34 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         }
     }
 
+    @Subscribe
+    public synchronized void onUpdatedPowerMode(Events.UpdatedPowerMode updatedPowerMode) {
+        // Apply the new mode in place: the friend poll and location fix are rescheduled with
+        // the new intervals, and on leaving battery saver mode deferred pushes and downloads
+        // start now.
+        mBatterySaver = updatedPowerMode.mBatterySaver;
+        try {
+            FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+            if (friendPollScheduler != null) {
+                friendPollScheduler.setBaseInterval(getFriendPollBaseInterval());
+                schedulePollFriends();
+            }
+            if (mLocationMonitor != null) {
+                mLocationMonitor.reschedule();
+            }
+            if (mPendingPushSinceTime != -1) {
+                schedulePushToFriends();
+            }
+            if (!mBatterySaver) {
+                for (Data.Friend friend : Data.getInstance().getFriends()) {
+                    submitFriendTask(FriendTaskType.DOWNLOAD_FROM, friend.mId);
+                }
+            }
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to apply power mode change");
+        }
+    }
+
     @Subscribe
     public synchronized void onUpdatedSelf(Events.UpdatedSelf updatedSelf) {
         // Apply new transport and hidden service credentials
@@ -515,34 +999,57 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     @Subscribe
     public synchronized void onUpdatedSelfStatus(Events.UpdatedSelfStatus updatedSelfStatus) {
-        try {
-            // Immediately push new status to all friends. If this fails for any reason,
-            // implicitly fall back to friends pulling status.
-            pushToFriends();
-        } catch (Utils.ApplicationError e) {
-            Log.addEntry(LOG_TAG, "failed push to friends after self status updated");
-        }
+        // Push new status to all friends, after coalescing. If this fails for any reason,
+        // implicitly fall back to friends pulling status.
+        schedulePushToFriends();
     }
 
     @Subscribe
     public synchronized void onAddedFriend(Events.AddedFriend addedFriend) {
-        // Apply new set of friends to web server and pull schedule.
-        // Friend poll will be started after Tor circuit is established.
-        // TODO: don't need to restart Tor, just web server
-        // (now need to restart Tor due to Hidden Service auth; but could use control interface instead?)
+        // Apply new set of friends to web server, Tor and pull schedule.
+        // If the friend poll isn't running, it will be started after Tor circuit is established.
         try {
-            startHiddenService();
+            updateHiddenServiceFriends();
         } catch (Utils.ApplicationError e) {
-            Log.addEntry(LOG_TAG, "failed restart sharing service after added friend");
+            Log.addEntry(LOG_TAG, "failed update sharing service after added friend");
+        }
+        FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+        if (friendPollScheduler != null) {
+            friendPollScheduler.addFriend(addedFriend.mId, FRIEND_REQUEST_DELAY_IN_MILLISECONDS);
+            schedulePollFriends();
         }
     }
 
     @Subscribe
     public synchronized void onRemovedFriend(Events.RemovedFriend removedFriend) {
+        cancelFriendTasks(removedFriend.mId);
+        // Delete the friend's downloaded files in the background, now that no download
+        // task will append to them
+        if (removedFriend.mRemovedDownloads.size() > 0) {
+            final List<Data.Download> removedDownloads = removedFriend.mRemovedDownloads;
+            Runnable deleteDownloadsTask = new Runnable() {
+                @Override
+                public void run() {
+                    for (Data.Download download : removedDownloads) {
+                        Downloads.deleteDownloadFile(download);
+                    }
+                }
+            };
+            if (submitTask(TaskExecutor.TaskClass.BACKGROUND, deleteDownloadsTask) == null) {
+                Log.addEntry(LOG_TAG, "failed to delete download files after removed friend");
+            }
+        }
+        mSentSelfStatusVersions.remove(removedFriend.mId);
+        mFriendStatusEncodings.remove(removedFriend.mId);
+        FriendPollScheduler friendPollScheduler = mFriendPollScheduler;
+        if (friendPollScheduler != null) {
+            friendPollScheduler.removeFriend(removedFriend.mId);
+            schedulePollFriends();
+        }
         try {
-            startHiddenService();
+            updateHiddenServiceFriends();
         } catch (Utils.ApplicationError e) {
-            Log.addEntry(LOG_TAG, "failed restart sharing service after removed friend");
+            Log.addEntry(LOG_TAG, "failed update sharing service after removed friend");
         }
     }
 
@@ -561,19 +1068,29 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         submitFriendTask(FriendTaskType.DOWNLOAD_FROM, addedDownload.mFriendId);
     }
 
+    @Subscribe
+    public synchronized void onCancelledDownload(Events.CancelledDownload cancelledDownload) {
+        // Stop the download if it's in progress, and continue with the friend's next download
+        if (cancelledDownload.mResourceId.equals(mFriendDownloadResourceIds.get(cancelledDownload.mFriendId))) {
+            cancelFriendTask(FriendTaskType.DOWNLOAD_FROM, cancelledDownload.mFriendId);
+            submitFriendTask(FriendTaskType.DOWNLOAD_FROM, cancelledDownload.mFriendId);
+        }
+    }
+
     // Note: not synchronized
     @Override
-    public Data.Status handlePullStatusRequest(String friendCertificate) throws Utils.ApplicationError {
+    public byte[] handlePullStatusRequest(String friendCertificate, String mimeType, boolean compressed) throws Utils.ApplicationError {
         // Friend is requesting (pulling) self status
         // TODO: cancel any pending push to this friend?
         try {
             Data data = Data.getInstance();
             Data.Friend friend = data.getFriendByCertificate(friendCertificate);
-            Data.Status status = data.getSelfStatus();
+            Data.EncodedStatus encodedSelfStatus = data.getEncodedSelfStatus(mimeType, compressed);
             // TODO: we don't yet know the friend really received the response bytes
+            mSentSelfStatusVersions.put(friend.mId, encodedSelfStatus.mVersion);
             data.updateFriendLastSentStatusTimestamp(friend.mId);
             Log.addEntry(LOG_TAG, "served pull status request for " + friend.mPublicIdentity.mNickname);
-            return status;
+            return encodedSelfStatus.mBytes;
         } catch (Data.DataNotFoundError e) {
             throw new Utils.ApplicationError(LOG_TAG, "failed to handle pull status request: friend not found");
         }
@@ -589,8 +1106,10 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
             data.updateFriendStatus(friend.mId, status);
             // TODO: we don't yet know the friend really received the response bytes
             data.updateFriendLastReceivedStatusTimestamp(friend.mId);
-            // TODO: Reschedule (delay) any outstanding pull from this friend
+            // A push is activity: the next pull from this friend is rescheduled, on the
+            // shorter active interval, and any pending pull is now redundant
             cancelPendingFriendTask(FriendTaskType.PULL_FROM, friend.mId);
+            reportFriendPollResult(friend.mId, true, true);
             Log.addEntry(LOG_TAG, "served push status request for " + friend.mPublicIdentity.mNickname);
         } catch (Data.DataNotFoundError e) {
             throw new Utils.ApplicationError(LOG_TAG, "failed to handle push status request: friend not found");
@@ -632,6 +1151,11 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         return mSharedPreferences.getBoolean(key, false);
     }
 
+    public synchronized long getLocationFixFrequencyInMilliseconds() throws Utils.ApplicationError {
+        long frequency = getIntPreference(R.string.preferenceLocationFixFrequencyInMinutes)*60*1000L;
+        return mBatterySaver ? frequency*BATTERY_SAVER_INTERVAL_MULTIPLIER : frequency;
+    }
+
     public synchronized int getIntPreference(int keyResID) throws Utils.ApplicationError {
         String key = mContext.getString(keyResID);
         if (!mSharedPreferences.contains(key)) {
@@ -20,6 +20,7 @@
 package ca.psiphon.ploggy;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import android.location.Address;
@@ -122,6 +123,14 @@ public class Events {
         }
     }
 
+    public static class UpdatedFriendTimestamps  {
+        public final String mId;
+
+        public UpdatedFriendTimestamps(String id) {
+            mId = id;
+        }
+    }
+
     public static class UpdatedFriendStatus {
         public final String mId;
 
@@ -132,9 +141,11 @@ public class Events {
 
     public static class RemovedFriend  {
         public final String mId;
+        public final List<Data.Download> mRemovedDownloads;
 
-        public RemovedFriend(String id) {
+        public RemovedFriend(String id, List<Data.Download> removedDownloads) {
             mId = id;
+            mRemovedDownloads = removedDownloads;
         }
     }
 
@@ -159,4 +170,22 @@ public class Events {
             mResourceId = resourceId;
         }
     }
+
+    public static class CancelledDownload {
+        public final String mFriendId;
+        public final String mResourceId;
+
+        public CancelledDownload(String friendId, String resourceId) {
+            mFriendId = friendId;
+            mResourceId = resourceId;
+        }
+    }
+
+    public static class UpdatedPowerMode {
+        public final boolean mBatterySaver;
+
+        public UpdatedPowerMode(boolean batterySaver) {
+            mBatterySaver = batterySaver;
+        }
+    }
 }
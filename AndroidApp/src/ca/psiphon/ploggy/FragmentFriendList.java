@@ -19,6 +19,7 @@
 
 package ca.psiphon.ploggy;
 
+import java.util.Date;
 import java.util.List;
 
 import android.app.AlertDialog;
@@ -157,6 +158,11 @@ public class FragmentFriendList extends ListFragment {
         updateFriends();
     }
 
+    @Subscribe
+    public void onUpdatedFriendTimestamps(Events.UpdatedFriendTimestamps updatedFriendTimestamps) {
+        updateFriends();
+    }
+
     @Subscribe
     public void onUpdatedFriendStatus(Events.UpdatedFriendStatus updatedFriendStatus) {
         updateFriends();
@@ -185,14 +191,23 @@ public class FragmentFriendList extends ListFragment {
     private static class FriendAdapter extends BaseAdapter {
         private final Context mContext;
         private List<Data.Friend> mFriends;
+        private long mFriendsVersion;
 
         public FriendAdapter(Context context) throws Utils.ApplicationError {
             mContext = context;
+            mFriendsVersion = Data.getInstance().getVersion(Data.Collection.FRIENDS);
             mFriends = Data.getInstance().getFriends();
         }
 
         public void updateFriends() throws Utils.ApplicationError {
-            mFriends = Data.getInstance().getFriends();
+            // Statuses and last sent/received timestamps are read when rows are drawn, so
+            // the list itself is only reloaded when friends change
+            Data data = Data.getInstance();
+            long friendsVersion = data.getVersion(Data.Collection.FRIENDS);
+            if (friendsVersion != mFriendsVersion) {
+                mFriendsVersion = friendsVersion;
+                mFriends = data.getFriends();
+            }
             notifyDataSetChanged();
         }
 
@@ -235,13 +250,15 @@ public class FragmentFriendList extends ListFragment {
                     Data.Status friendStatus = data.getFriendStatus(friend.mId);
 
                     // Display most recent successful communication timestamp
+                    Date lastSentStatusTimestamp = data.getFriendLastSentStatusTimestamp(friend.mId);
+                    Date lastReceivedStatusTimestamp = data.getFriendLastReceivedStatusTimestamp(friend.mId);
                     String lastTimestamp = "";
-                    if (friend.mLastReceivedStatusTimestamp != null &&
-                            (friend.mLastSentStatusTimestamp == null ||
-                             friend.mLastReceivedStatusTimestamp.after(friend.mLastSentStatusTimestamp))) {
-                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, friend.mLastReceivedStatusTimestamp, true);
-                    } else if (friend.mLastSentStatusTimestamp != null) {
-                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, friend.mLastSentStatusTimestamp, true);
+                    if (lastReceivedStatusTimestamp != null &&
+                            (lastSentStatusTimestamp == null ||
+                             lastReceivedStatusTimestamp.after(lastSentStatusTimestamp))) {
+                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, lastReceivedStatusTimestamp, true);
+                    } else if (lastSentStatusTimestamp != null) {
+                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, lastSentStatusTimestamp, true);
                     }
                     lastTimestampText.setText(lastTimestamp);
                     if (lastTimestamp.length() > 0) {
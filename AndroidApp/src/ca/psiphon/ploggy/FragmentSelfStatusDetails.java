@@ -203,7 +203,7 @@ public class FragmentSelfStatusDetails extends Fragment {
 
             Robohash.setRobohashImage(getActivity(), mAvatarImage, true, self.mPublicIdentity);
             mNicknameText.setText(self.mPublicIdentity.mNickname);
-            mFingerprintText.setText(Utils.formatFingerprint(self.mPublicIdentity.getFingerprint()));
+            mFingerprintText.setText(self.mPublicIdentity.getFormattedFingerprint());
 
             // Note: always show message section label and content edit
             int messageVisibility = (selfStatus.mMessages.size() > 0) ? View.VISIBLE : View.GONE;
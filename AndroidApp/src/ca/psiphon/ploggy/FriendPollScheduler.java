@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Per-friend schedule of status pulls.
+ *
+ * Each friend has its own next due time, kept in a queue ordered by due time, so the
+ * Engine only needs one timer, set for the earliest due time. Intervals are adjusted per
+ * friend:
+ * - the base interval is the pull frequency preference
+ * - friends with recent activity (new status received) are polled more frequently
+ * - consecutive failures back off exponentially, up to a cap
+ * - every interval is jittered, and initial due times are spread out, so pulls to many
+ *   friends don't all go out in one burst
+ * - in battery saver mode, polls due close together are batched into one wake up
+ *
+ * Times are SystemClock.elapsedRealtime() milliseconds. All methods are thread safe.
+ */
+public class FriendPollScheduler {
+
+    private static final long MIN_POLL_INTERVAL_IN_MILLISECONDS = 60*1000;
+    private static final long MAX_BACKOFF_INTERVAL_IN_MILLISECONDS = 4*60*60*1000;
+    private static final int MAX_BACKOFF_EXPONENT = 8;
+    private static final long ACTIVE_PERIOD_IN_MILLISECONDS = 30*60*1000;
+    private static final int ACTIVE_INTERVAL_DIVISOR = 4;
+    private static final long MAX_INITIAL_SPREAD_IN_MILLISECONDS = 2*60*1000;
+    private static final double JITTER_FACTOR = 0.25;
+    private static final int BATCH_WINDOW_DIVISOR = 4;
+
+    private static class Schedule {
+        final String mFriendId;
+        long mDueTime;
+        int mConsecutiveFailures;
+        long mLastActivityTime;
+
+        Schedule(String friendId) {
+            mFriendId = friendId;
+            mLastActivityTime = -1;
+        }
+    }
+
+    private long mBaseInterval;
+    private final Random mRandom;
+    private final HashMap<String, Schedule> mSchedules;
+    private final PriorityQueue<Schedule> mQueue;
+
+    public FriendPollScheduler(long baseIntervalInMilliseconds) {
+        mBaseInterval = Math.max(baseIntervalInMilliseconds, MIN_POLL_INTERVAL_IN_MILLISECONDS);
+        mRandom = new Random();
+        mSchedules = new HashMap<String, Schedule>();
+        mQueue = new PriorityQueue<Schedule>(
+                11,
+                new Comparator<Schedule>() {
+                    @Override
+                    public int compare(Schedule a, Schedule b) {
+                        return a.mDueTime < b.mDueTime ? -1 : (a.mDueTime > b.mDueTime ? 1 : 0);
+                    }
+                });
+    }
+
+    public synchronized void addFriend(String friendId, long initialDelayInMilliseconds) {
+        // First poll after the initial delay, spread over part of the base interval
+        if (mSchedules.containsKey(friendId)) {
+            return;
+        }
+        Schedule schedule = new Schedule(friendId);
+        long spread = Math.min(mBaseInterval, MAX_INITIAL_SPREAD_IN_MILLISECONDS);
+        schedule.mDueTime = SystemClock.elapsedRealtime() + initialDelayInMilliseconds + (long)(mRandom.nextDouble()*spread);
+        mSchedules.put(friendId, schedule);
+        mQueue.add(schedule);
+    }
+
+    public synchronized void setBaseInterval(long baseIntervalInMilliseconds) {
+        // Friends due later than a full new interval from now are brought forward; otherwise
+        // the new interval applies from each friend's next poll
+        mBaseInterval = Math.max(baseIntervalInMilliseconds, MIN_POLL_INTERVAL_IN_MILLISECONDS);
+        long now = SystemClock.elapsedRealtime();
+        for (Schedule schedule : mSchedules.values()) {
+            if (schedule.mDueTime > now + mBaseInterval) {
+                reschedule(schedule, now);
+            }
+        }
+    }
+
+    public synchronized void removeFriend(String friendId) {
+        Schedule schedule = mSchedules.remove(friendId);
+        if (schedule != null) {
+            mQueue.remove(schedule);
+        }
+    }
+
+    // Returns -1 when no friends are scheduled
+    public synchronized long getNextDueTime() {
+        Schedule schedule = mQueue.peek();
+        return schedule != null ? schedule.mDueTime : -1;
+    }
+
+    public synchronized List<String> takeDueFriends(boolean batched) {
+        // Due friends are provisionally rescheduled one full interval out, so a poll that
+        // never reports back (e.g., cancelled while pending) still recurs. When batched,
+        // friends due within a fraction of the base interval are taken early, so polls
+        // share one wake up instead of each waking the device.
+        long now = SystemClock.elapsedRealtime();
+        long dueTime = batched ? now + mBaseInterval/BATCH_WINDOW_DIVISOR : now;
+        List<String> dueFriendIds = new ArrayList<String>();
+        while (!mQueue.isEmpty() && mQueue.peek().mDueTime <= dueTime) {
+            dueFriendIds.add(mQueue.peek().mFriendId);
+            reschedule(mQueue.peek(), now);
+        }
+        return dueFriendIds;
+    }
+
+    public synchronized void reportSuccess(String friendId) {
+        Schedule schedule = mSchedules.get(friendId);
+        if (schedule != null) {
+            schedule.mConsecutiveFailures = 0;
+            reschedule(schedule, SystemClock.elapsedRealtime());
+        }
+    }
+
+    public synchronized void reportFailure(String friendId) {
+        Schedule schedule = mSchedules.get(friendId);
+        if (schedule != null) {
+            schedule.mConsecutiveFailures++;
+            reschedule(schedule, SystemClock.elapsedRealtime());
+        }
+    }
+
+    public synchronized void reportActivity(String friendId) {
+        // Activity is also proof the friend is reachable, so clears any backoff. Pushes are
+        // reported here too: the next pull is set to the active interval from now, which
+        // defers a pull due sooner and brings forward a pull due later.
+        Schedule schedule = mSchedules.get(friendId);
+        if (schedule != null) {
+            long now = SystemClock.elapsedRealtime();
+            schedule.mLastActivityTime = now;
+            schedule.mConsecutiveFailures = 0;
+            reschedule(schedule, now);
+        }
+    }
+
+    private void reschedule(Schedule schedule, long now) {
+        long interval = mBaseInterval;
+        if (schedule.mConsecutiveFailures > 0) {
+            int exponent = Math.min(schedule.mConsecutiveFailures, MAX_BACKOFF_EXPONENT);
+            interval = Math.min(
+                    mBaseInterval << exponent,
+                    Math.max(mBaseInterval, MAX_BACKOFF_INTERVAL_IN_MILLISECONDS));
+        } else if (schedule.mLastActivityTime != -1
+                && now - schedule.mLastActivityTime < ACTIVE_PERIOD_IN_MILLISECONDS) {
+            interval = Math.max(mBaseInterval/ACTIVE_INTERVAL_DIVISOR, MIN_POLL_INTERVAL_IN_MILLISECONDS);
+        }
+        // Uniform in [interval*(1-JITTER_FACTOR), interval*(1+JITTER_FACTOR)]
+        long jitteredInterval = (long)(interval*(1.0 + JITTER_FACTOR*(2.0*mRandom.nextDouble() - 1.0)));
+        mQueue.remove(schedule);
+        schedule.mDueTime = now + jitteredInterval;
+        mQueue.add(schedule);
+    }
+}
@@ -21,6 +21,8 @@ package ca.psiphon.ploggy;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Representation of Ploggy public Identity.
@@ -34,6 +36,8 @@ public class Identity {
 
     private static final String LOG_TAG = "Identity";
 
+    private static final String AVATAR_DIGEST_ALGORITHM = "SHA-1";
+
     // TODO: distinct root cert and server/client (transport) certs?
 
     public static class PublicIdentity {
@@ -47,6 +51,13 @@ public class Identity {
         public final String mHiddenServiceAuthCookie;
         public final String mSignature;
 
+        // Derived values, computed once on first use. Transient, so they're neither
+        // serialized nor expected from JSON; identities loaded from JSON compute them lazily.
+        private transient volatile byte[] mFingerprint;
+        private transient volatile String mFormattedFingerprint;
+        private transient volatile String mCertificateDigest;
+        private transient volatile byte[] mAvatarDigest;
+
         public PublicIdentity(
                 String nickname,
                 String x509Certificate,
@@ -63,7 +74,49 @@ public class Identity {
         public byte[] getFingerprint() throws Utils.ApplicationError {
             // Note: Fingerprint excludes hidden service auth cookies, since those may change.
             // (Those values *are* included in signatures to ensure a false value isn't swapped in, denying service.)
-            return X509.getFingerprint(mNickname, mX509Certificate, mHiddenServiceHostname);
+            byte[] fingerprint = mFingerprint;
+            if (fingerprint == null) {
+                fingerprint = X509.getFingerprint(mNickname, mX509Certificate, mHiddenServiceHostname);
+                mFingerprint = fingerprint;
+            }
+            return fingerprint.clone();
+        }
+
+        public String getFormattedFingerprint() throws Utils.ApplicationError {
+            String formattedFingerprint = mFormattedFingerprint;
+            if (formattedFingerprint == null) {
+                formattedFingerprint = Utils.formatFingerprint(getFingerprint());
+                mFormattedFingerprint = formattedFingerprint;
+            }
+            return formattedFingerprint;
+        }
+
+        public String getCertificateDigest() throws Utils.ApplicationError {
+            // Compact key for the certificate alone, for indexing by peer certificate
+            String certificateDigest = mCertificateDigest;
+            if (certificateDigest == null) {
+                certificateDigest = getCertificateDigest(mX509Certificate);
+                mCertificateDigest = certificateDigest;
+            }
+            return certificateDigest;
+        }
+
+        public static String getCertificateDigest(String x509Certificate) throws Utils.ApplicationError {
+            return Utils.encodeBase64(X509.getFingerprint(x509Certificate));
+        }
+
+        public byte[] getAvatarDigest() throws Utils.ApplicationError {
+            // Seeds the avatar image; see Robohash
+            byte[] avatarDigest = mAvatarDigest;
+            if (avatarDigest == null) {
+                try {
+                    avatarDigest = MessageDigest.getInstance(AVATAR_DIGEST_ALGORITHM).digest(getFingerprint());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new Utils.ApplicationError(LOG_TAG, e);
+                }
+                mAvatarDigest = avatarDigest;
+            }
+            return avatarDigest.clone();
         }
     }
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Append-only change journal for a single persisted data set.
+ *
+ * Each mutation is recorded as one small JSON record (a keyed put or remove), so the cost
+ * of a write is proportional to the change and not to the size of the data set. On load,
+ * records are replayed on top of the last snapshot. Once enough records accumulate, the
+ * owner writes a fresh snapshot and truncates the journal (compaction).
+ *
+ * Records are newline-prefixed so that a record torn by a crash mid-append occupies its own
+ * line; such lines are skipped on replay. Replay must be idempotent, as a crash between
+ * writing a snapshot and truncating the journal leaves already-applied records behind.
+ */
+public class Journal {
+
+    private static final String LOG_TAG = "Journal";
+
+    private static final int MIN_COMPACTION_RECORD_COUNT = 64;
+
+    public static class Record {
+        public enum Operation {PUT, REMOVE}
+        public final Operation mOperation;
+        public final String mKey;
+        public final String mValue;
+
+        public Record(
+                Operation operation,
+                String key,
+                String value) {
+            mOperation = operation;
+            mKey = key;
+            mValue = value;
+        }
+    }
+
+    public interface Replayer {
+        public void replay(Record record) throws Utils.ApplicationError;
+    }
+
+    private final File mFile;
+    private int mRecordCount;
+
+    public Journal(File file) {
+        mFile = file;
+        mRecordCount = 0;
+    }
+
+    public synchronized void replay(Replayer replayer) throws Utils.ApplicationError {
+        mRecordCount = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = Json.fromJson(line, Record.class);
+                } catch (Utils.ApplicationError e) {
+                    Log.addEntry(LOG_TAG, "skipped incomplete record: " + mFile.getName());
+                    continue;
+                }
+                if (record == null || record.mOperation == null || record.mKey == null) {
+                    continue;
+                }
+                replayer.replay(record);
+                mRecordCount++;
+            }
+        } catch (FileNotFoundException e) {
+            // No changes since last snapshot
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public void put(String key, Object value) throws Utils.ApplicationError {
+        append(new Record(Record.Operation.PUT, key, Json.toJson(value)));
+    }
+
+    public void remove(String key) throws Utils.ApplicationError {
+        append(new Record(Record.Operation.REMOVE, key, null));
+    }
+
+    private synchronized void append(Record record) throws Utils.ApplicationError {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(mFile, true);
+            outputStream.write(("\n" + Json.toJson(record)).getBytes("UTF-8"));
+            outputStream.close();
+            mRecordCount++;
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isCompactionDue(int snapshotSize) {
+        // Compacting once the journal outgrows the snapshot keeps the amortized
+        // cost of each change constant
+        return mRecordCount >= Math.max(MIN_COMPACTION_RECORD_COUNT, snapshotSize);
+    }
+
+    public synchronized void truncate() throws Utils.ApplicationError {
+        if (!mFile.delete() && mFile.exists()) {
+            throw new Utils.ApplicationError(LOG_TAG, "failed to truncate journal");
+        }
+        mRecordCount = 0;
+    }
+}
@@ -19,11 +19,23 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Field;
+import java.util.Date;
 
 import com.google.gson.FieldNamingStrategy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
 /**
@@ -31,18 +43,39 @@ import com.google.gson.JsonSyntaxException;
  *
  * Designed to work with the POJOs in Data and Identity, etc. Implements a custom field
  * renaming to convert Java code style "mFieldname" fieldnames to JSON style "fieldname".
+ * The POJOs exchanged with friends and stored by Data have hand-written adapters in JsonAdapters,
+ * which produce the same JSON without reflection.
+ *
+ * The stream variants read and write UTF-8 JSON directly from/to files and sockets without
+ * an intermediate String. They don't close the stream; the caller owns it.
+ *
+ * Dates are epoch milliseconds. The "WithLegacyDates" variants write dates in the older,
+ * second resolution format instead, for JSON sent to peers which may not read milliseconds.
+ * Either format is read.
  */
 public class Json {
 
     private static final String LOG_TAG = "Json";
 
     private static final Gson mSerializer =
-            new GsonBuilder().
-                    serializeNulls().
-                    setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").
-                    setFieldNamingStrategy(new CustomFieldNamingStrategy()).
+            makeReflectiveGsonBuilder(false).
+                    registerTypeAdapterFactory(new JsonAdapters.Factory()).
+                    create();
+
+    private static final Gson mLegacyDateSerializer =
+            makeReflectiveGsonBuilder(true).
+                    registerTypeAdapterFactory(new JsonAdapters.Factory()).
                     create();
 
+    static GsonBuilder makeReflectiveGsonBuilder(boolean writeLegacyDates) {
+        // Without the JsonAdapters, all types are serialized by reflection. Also used as the
+        // baseline in Tests.runJsonBenchmarks.
+        return new GsonBuilder().
+                serializeNulls().
+                registerTypeAdapter(Date.class, new JsonAdapters.DateAdapter(writeLegacyDates)).
+                setFieldNamingStrategy(new CustomFieldNamingStrategy());
+    }
+
     public static String toJson(Object object) {
         return mSerializer.toJson(object);
     }
@@ -55,27 +88,58 @@ public class Json {
         }
     }
 
-    // TODO: remove this function if not used
-    /*
-    public static <T> ArrayList<T> fromJsonStream(InputStream inputStream, Class<T> type) throws Utils.ApplicationError {
-        // Reads succession of JSON objects from a stream. This does *not* expect a well-formed JSON array.
-        // Designed to work with the log file, which is constantly appended to.
+    public static void toJson(Object object, Writer writer) throws Utils.ApplicationError {
         try {
-            JsonReader jsonReader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
-            jsonReader.setLenient(true);
-            ArrayList<T> array = new ArrayList<T>();
-            while (jsonReader.peek() != JsonToken.END_DOCUMENT) {
-                array.add((T)mSerializer.fromJson(jsonReader, type));
-            }
-            jsonReader.close();
-            return array;
+            mSerializer.toJson(object, writer);
+            writer.flush();
+        } catch (JsonIOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
         } catch (IOException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static void toJson(Object object, OutputStream outputStream) throws Utils.ApplicationError {
+        try {
+            toJson(object, new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static String toJsonWithLegacyDates(Object object) {
+        return mLegacyDateSerializer.toJson(object);
+    }
+
+    public static void toJsonWithLegacyDates(Object object, OutputStream outputStream) throws Utils.ApplicationError {
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+            mLegacyDateSerializer.toJson(object, writer);
+            writer.flush();
+        } catch (JsonIOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static <T> T fromJson(Reader reader, Class<T> type) throws Utils.ApplicationError {
+        try {
+            return mSerializer.fromJson(reader, type);
         } catch (JsonSyntaxException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (JsonIOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static <T> T fromJson(InputStream inputStream, Class<T> type) throws Utils.ApplicationError {
+        try {
+            return fromJson(new BufferedReader(new InputStreamReader(inputStream, "UTF-8")), type);
+        } catch (UnsupportedEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
         }
     }
-    */
 
     private static class CustomFieldNamingStrategy implements FieldNamingStrategy {
 
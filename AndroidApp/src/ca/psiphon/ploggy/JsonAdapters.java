@@ -0,0 +1,677 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Hand-written GSON type adapters for the POJOs exchanged with friends and stored by Data.
+ *
+ * These replace GSON's reflective adapters, which look up, rename and set each field by
+ * reflection. The JSON is the same: field names are the field names without the "m" prefix,
+ * nulls are written, unknown fields are skipped and missing fields get their default value.
+ * Dates use the Gson instance's date adapter; see DateAdapter.
+ *
+ * When adding a field to one of these POJOs, add it to its adapter too.
+ */
+public class JsonAdapters {
+
+    public static class Factory implements TypeAdapterFactory {
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            Class<? super T> rawType = type.getRawType();
+            if (rawType == Data.Status.class) {
+                return (TypeAdapter<T>)new StatusAdapter(gson);
+            } else if (rawType == Data.Message.class) {
+                return (TypeAdapter<T>)new MessageAdapter(gson);
+            } else if (rawType == Data.Location.class) {
+                return (TypeAdapter<T>)new LocationAdapter(gson);
+            } else if (rawType == Data.Resource.class) {
+                return (TypeAdapter<T>)new ResourceAdapter();
+            } else if (rawType == Data.Friend.class) {
+                return (TypeAdapter<T>)new FriendAdapter(gson);
+            } else if (rawType == Data.Download.class) {
+                return (TypeAdapter<T>)new DownloadAdapter();
+            } else if (rawType == Data.LocalResource.class) {
+                return (TypeAdapter<T>)new LocalResourceAdapter();
+            } else if (rawType == Identity.PublicIdentity.class) {
+                return (TypeAdapter<T>)new PublicIdentityAdapter();
+            }
+            return null;
+        }
+    }
+
+    public static class DateAdapter extends TypeAdapter<Date> {
+        // Dates are written as epoch milliseconds. The legacy format, with second resolution,
+        // is still read, and is written for the JSON sent to peers, which may predate this.
+
+        private static final String LEGACY_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+        private final boolean mWriteLegacyFormat;
+
+        public DateAdapter(boolean writeLegacyFormat) {
+            mWriteLegacyFormat = writeLegacyFormat;
+        }
+
+        @Override
+        public void write(JsonWriter out, Date date) throws IOException {
+            if (date == null) {
+                out.nullValue();
+            } else if (mWriteLegacyFormat) {
+                out.value(formatLegacyDate(date.getTime()));
+            } else {
+                out.value(date.getTime());
+            }
+        }
+
+        @Override
+        public Date read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            } else if (token == JsonToken.NUMBER) {
+                return new Date(in.nextLong());
+            }
+            String value = in.nextString();
+            Date date = parseLegacyDate(value);
+            if (date == null) {
+                // Not the exact legacy layout; e.g., a zone offset in another form
+                try {
+                    SimpleDateFormat dateFormat = new SimpleDateFormat(LEGACY_DATE_FORMAT, Locale.US);
+                    dateFormat.setLenient(false);
+                    date = dateFormat.parse(value);
+                } catch (ParseException e) {
+                    throw new JsonSyntaxException(value, e);
+                }
+            }
+            return date;
+        }
+
+        private static String formatLegacyDate(long time) {
+            // As written by SimpleDateFormat with LEGACY_DATE_FORMAT, in UTC
+            long seconds = floorDiv(time, 1000);
+            long days = floorDiv(seconds, 86400);
+            int secondOfDay = (int)(seconds - days*86400);
+            // Civil date from days since the epoch; see http://howardhinnant.github.io/date_algorithms.html
+            long z = days + 719468;
+            long era = floorDiv(z, 146097);
+            long dayOfEra = z - era*146097;
+            long yearOfEra = (dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096) / 365;
+            long dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+            long monthIndex = (5*dayOfYear + 2)/153;
+            int day = (int)(dayOfYear - (153*monthIndex + 2)/5 + 1);
+            int month = (int)(monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+            long year = yearOfEra + era*400 + (month <= 2 ? 1 : 0);
+            if (year < 0 || year > 9999) {
+                SimpleDateFormat dateFormat = new SimpleDateFormat(LEGACY_DATE_FORMAT, Locale.US);
+                dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+                return dateFormat.format(new Date(time));
+            }
+            char[] value = "0000-00-00T00:00:00+0000".toCharArray();
+            formatDigits(value, 0, 4, year);
+            formatDigits(value, 5, 2, month);
+            formatDigits(value, 8, 2, day);
+            formatDigits(value, 11, 2, secondOfDay/3600);
+            formatDigits(value, 14, 2, (secondOfDay/60) % 60);
+            formatDigits(value, 17, 2, secondOfDay % 60);
+            return new String(value);
+        }
+
+        private static Date parseLegacyDate(String value) {
+            // Returns null when value isn't exactly in the "yyyy-MM-ddTHH:mm:ss+hhmm" layout.
+            // Out of range fields, including the zone offset, are rejected rather than
+            // parsed as some other instant.
+            if (value.length() != 24 ||
+                    value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T' ||
+                    value.charAt(13) != ':' || value.charAt(16) != ':' ||
+                    (value.charAt(19) != '+' && value.charAt(19) != '-')) {
+                return null;
+            }
+            int year = parseDigits(value, 0, 4);
+            int month = parseDigits(value, 5, 2);
+            int day = parseDigits(value, 8, 2);
+            int hour = parseDigits(value, 11, 2);
+            int minute = parseDigits(value, 14, 2);
+            int second = parseDigits(value, 17, 2);
+            int offsetHours = parseDigits(value, 20, 2);
+            int offsetMinutes = parseDigits(value, 22, 2);
+            if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 ||
+                    hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 ||
+                    offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59) {
+                throw new JsonSyntaxException("invalid date: " + value);
+            }
+            // Days since the epoch from the civil date; see formatLegacyDate
+            long y = month <= 2 ? year - 1 : year;
+            long era = floorDiv(y, 400);
+            long yearOfEra = y - era*400;
+            long dayOfYear = (153*(month > 2 ? month - 3 : month + 9) + 2)/5 + day - 1;
+            long dayOfEra = yearOfEra*365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+            long days = era*146097 + dayOfEra - 719468;
+            long offsetSeconds = (offsetHours*60 + offsetMinutes)*60 * (value.charAt(19) == '-' ? -1 : 1);
+            return new Date(((days*24 + hour)*60 + minute)*60*1000 + second*1000 - offsetSeconds*1000);
+        }
+
+        private static void formatDigits(char[] value, int offset, int length, long number) {
+            for (int i = offset + length - 1; i >= offset; i--) {
+                value[i] = (char)('0' + number % 10);
+                number /= 10;
+            }
+        }
+
+        private static int parseDigits(String value, int offset, int length) {
+            // Returns -1 for a non-digit
+            int number = 0;
+            for (int i = offset; i < offset + length; i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                number = number*10 + (c - '0');
+            }
+            return number;
+        }
+
+        private static long floorDiv(long a, long b) {
+            long quotient = a / b;
+            return (a % b != 0 && (a < 0) != (b < 0)) ? quotient - 1 : quotient;
+        }
+    }
+
+    private static class StatusAdapter extends TypeAdapter<Data.Status> {
+        private final TypeAdapter<Data.Message> mMessageAdapter;
+        private final TypeAdapter<Data.Location> mLocationAdapter;
+
+        StatusAdapter(Gson gson) {
+            mMessageAdapter = gson.getAdapter(Data.Message.class);
+            mLocationAdapter = gson.getAdapter(Data.Location.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Data.Status status) throws IOException {
+            if (status == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("messages");
+            writeList(out, mMessageAdapter, status.mMessages);
+            out.name("location");
+            mLocationAdapter.write(out, status.mLocation);
+            out.endObject();
+        }
+
+        @Override
+        public Data.Status read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            List<Data.Message> messages = null;
+            Data.Location location = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("messages")) {
+                    messages = readList(in, mMessageAdapter);
+                } else if (name.equals("location")) {
+                    location = mLocationAdapter.read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Data.Status(messages, location);
+        }
+    }
+
+    private static class MessageAdapter extends TypeAdapter<Data.Message> {
+        private final TypeAdapter<Date> mDateAdapter;
+        private final TypeAdapter<Data.Resource> mResourceAdapter;
+
+        MessageAdapter(Gson gson) {
+            mDateAdapter = gson.getAdapter(Date.class);
+            mResourceAdapter = gson.getAdapter(Data.Resource.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Data.Message message) throws IOException {
+            if (message == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("timestamp");
+            mDateAdapter.write(out, message.mTimestamp);
+            out.name("content").value(message.mContent);
+            out.name("attachments");
+            writeList(out, mResourceAdapter, message.mAttachments);
+            out.endObject();
+        }
+
+        @Override
+        public Data.Message read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Date timestamp = null;
+            String content = null;
+            List<Data.Resource> attachments = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("timestamp")) {
+                    timestamp = mDateAdapter.read(in);
+                } else if (name.equals("content")) {
+                    content = readString(in);
+                } else if (name.equals("attachments")) {
+                    attachments = readList(in, mResourceAdapter);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Data.Message(timestamp, content, attachments);
+        }
+    }
+
+    private static class LocationAdapter extends TypeAdapter<Data.Location> {
+        private final TypeAdapter<Date> mDateAdapter;
+
+        LocationAdapter(Gson gson) {
+            mDateAdapter = gson.getAdapter(Date.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Data.Location location) throws IOException {
+            if (location == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("timestamp");
+            mDateAdapter.write(out, location.mTimestamp);
+            out.name("latitude").value(location.mLatitude);
+            out.name("longitude").value(location.mLongitude);
+            out.name("precision").value(location.mPrecision);
+            out.name("streetAddress").value(location.mStreetAddress);
+            out.endObject();
+        }
+
+        @Override
+        public Data.Location read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Date timestamp = null;
+            double latitude = 0;
+            double longitude = 0;
+            int precision = 0;
+            String streetAddress = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("timestamp")) {
+                    timestamp = mDateAdapter.read(in);
+                } else if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("latitude")) {
+                    latitude = in.nextDouble();
+                } else if (name.equals("longitude")) {
+                    longitude = in.nextDouble();
+                } else if (name.equals("precision")) {
+                    precision = in.nextInt();
+                } else if (name.equals("streetAddress")) {
+                    streetAddress = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Data.Location(timestamp, latitude, longitude, precision, streetAddress);
+        }
+    }
+
+    private static class ResourceAdapter extends TypeAdapter<Data.Resource> {
+
+        @Override
+        public void write(JsonWriter out, Data.Resource resource) throws IOException {
+            if (resource == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(resource.mId);
+            out.name("mimeType").value(resource.mMimeType);
+            out.name("size").value(resource.mSize);
+            out.endObject();
+        }
+
+        @Override
+        public Data.Resource read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null;
+            String mimeType = null;
+            long size = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("id")) {
+                    id = in.nextString();
+                } else if (name.equals("mimeType")) {
+                    mimeType = in.nextString();
+                } else if (name.equals("size")) {
+                    size = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Data.Resource(id, mimeType, size);
+        }
+    }
+
+    private static class FriendAdapter extends TypeAdapter<Data.Friend> {
+        private final TypeAdapter<Date> mDateAdapter;
+        private final TypeAdapter<Identity.PublicIdentity> mPublicIdentityAdapter;
+
+        FriendAdapter(Gson gson) {
+            mDateAdapter = gson.getAdapter(Date.class);
+            mPublicIdentityAdapter = gson.getAdapter(Identity.PublicIdentity.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Data.Friend friend) throws IOException {
+            if (friend == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(friend.mId);
+            out.name("publicIdentity");
+            mPublicIdentityAdapter.write(out, friend.mPublicIdentity);
+            out.name("addedTimestamp");
+            mDateAdapter.write(out, friend.mAddedTimestamp);
+            out.name("lastSentStatusTimestamp");
+            mDateAdapter.write(out, friend.mLastSentStatusTimestamp);
+            out.name("lastReceivedStatusTimestamp");
+            mDateAdapter.write(out, friend.mLastReceivedStatusTimestamp);
+            out.endObject();
+        }
+
+        @Override
+        public Data.Friend read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null;
+            Identity.PublicIdentity publicIdentity = null;
+            Date addedTimestamp = null;
+            Date lastSentStatusTimestamp = null;
+            Date lastReceivedStatusTimestamp = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("id")) {
+                    id = readString(in);
+                } else if (name.equals("publicIdentity")) {
+                    publicIdentity = mPublicIdentityAdapter.read(in);
+                } else if (name.equals("addedTimestamp")) {
+                    addedTimestamp = mDateAdapter.read(in);
+                } else if (name.equals("lastSentStatusTimestamp")) {
+                    lastSentStatusTimestamp = mDateAdapter.read(in);
+                } else if (name.equals("lastReceivedStatusTimestamp")) {
+                    lastReceivedStatusTimestamp = mDateAdapter.read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            // The stored id is used as is, as with reflection; it's not recomputed from the fingerprint
+            return new Data.Friend(id, publicIdentity, addedTimestamp, lastSentStatusTimestamp, lastReceivedStatusTimestamp);
+        }
+    }
+
+    private static class DownloadAdapter extends TypeAdapter<Data.Download> {
+
+        @Override
+        public void write(JsonWriter out, Data.Download download) throws IOException {
+            if (download == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("friendId").value(download.mFriendId);
+            out.name("resourceId").value(download.mResourceId);
+            out.name("mimeType").value(download.mMimeType);
+            out.name("size").value(download.mSize);
+            out.name("state").value(download.mState != null ? download.mState.name() : null);
+            out.endObject();
+        }
+
+        @Override
+        public Data.Download read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String friendId = null;
+            String resourceId = null;
+            String mimeType = null;
+            long size = 0;
+            Data.Download.State state = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("friendId")) {
+                    friendId = in.nextString();
+                } else if (name.equals("resourceId")) {
+                    resourceId = in.nextString();
+                } else if (name.equals("mimeType")) {
+                    mimeType = in.nextString();
+                } else if (name.equals("size")) {
+                    size = in.nextLong();
+                } else if (name.equals("state")) {
+                    state = readEnum(in, Data.Download.State.class);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Data.Download(friendId, resourceId, mimeType, size, state);
+        }
+    }
+
+    private static class LocalResourceAdapter extends TypeAdapter<Data.LocalResource> {
+
+        @Override
+        public void write(JsonWriter out, Data.LocalResource localResource) throws IOException {
+            if (localResource == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("type").value(localResource.mType != null ? localResource.mType.name() : null);
+            out.name("resourceId").value(localResource.mResourceId);
+            out.name("mimeType").value(localResource.mMimeType);
+            out.name("filePath").value(localResource.mFilePath);
+            out.name("tempFilePath").value(localResource.mTempFilePath);
+            out.endObject();
+        }
+
+        @Override
+        public Data.LocalResource read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Data.LocalResource.Type type = null;
+            String resourceId = null;
+            String mimeType = null;
+            String filePath = null;
+            String tempFilePath = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("type")) {
+                    type = readEnum(in, Data.LocalResource.Type.class);
+                } else if (name.equals("resourceId")) {
+                    resourceId = in.nextString();
+                } else if (name.equals("mimeType")) {
+                    mimeType = in.nextString();
+                } else if (name.equals("filePath")) {
+                    filePath = in.nextString();
+                } else if (name.equals("tempFilePath")) {
+                    tempFilePath = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Data.LocalResource(type, resourceId, mimeType, filePath, tempFilePath);
+        }
+    }
+
+    private static class PublicIdentityAdapter extends TypeAdapter<Identity.PublicIdentity> {
+
+        @Override
+        public void write(JsonWriter out, Identity.PublicIdentity publicIdentity) throws IOException {
+            if (publicIdentity == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("nickname").value(publicIdentity.mNickname);
+            out.name("x509Certificate").value(publicIdentity.mX509Certificate);
+            out.name("hiddenServiceHostname").value(publicIdentity.mHiddenServiceHostname);
+            out.name("hiddenServiceAuthCookie").value(publicIdentity.mHiddenServiceAuthCookie);
+            out.name("signature").value(publicIdentity.mSignature);
+            out.endObject();
+        }
+
+        @Override
+        public Identity.PublicIdentity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String nickname = null;
+            String x509Certificate = null;
+            String hiddenServiceHostname = null;
+            String hiddenServiceAuthCookie = null;
+            String signature = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("nickname")) {
+                    nickname = in.nextString();
+                } else if (name.equals("x509Certificate")) {
+                    x509Certificate = in.nextString();
+                } else if (name.equals("hiddenServiceHostname")) {
+                    hiddenServiceHostname = in.nextString();
+                } else if (name.equals("hiddenServiceAuthCookie")) {
+                    hiddenServiceAuthCookie = in.nextString();
+                } else if (name.equals("signature")) {
+                    signature = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Identity.PublicIdentity(
+                    nickname, x509Certificate, hiddenServiceHostname, hiddenServiceAuthCookie, signature);
+        }
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static <E extends Enum<E>> E readEnum(JsonReader in, Class<E> type) throws IOException {
+        // As with GSON's enum adapter, an unknown value reads as null
+        try {
+            return Enum.valueOf(type, in.nextString());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static <T> void writeList(JsonWriter out, TypeAdapter<T> adapter, List<T> list) throws IOException {
+        if (list == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (T item : list) {
+            adapter.write(out, item);
+        }
+        out.endArray();
+    }
+
+    private static <T> List<T> readList(JsonReader in, TypeAdapter<T> adapter) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<T> list = new ArrayList<T>();
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(adapter.read(in));
+        }
+        in.endArray();
+        return list;
+    }
+}
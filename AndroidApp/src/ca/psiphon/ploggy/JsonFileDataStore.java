@@ -0,0 +1,613 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * DataStore which keeps each data set in a JSON file.
+ *
+ * Simple consistency is provided: data changes are first written to a commit file, then the commit
+ * file replaces the data file. Commit files left by an interrupted write are completed in open().
+ *
+ * Small, frequent changes to self status, friends, local resources and downloads are appended
+ * to a per-file Journal instead of rewriting the whole file. The journal is replayed over the
+ * last snapshot on load and compacted into a new snapshot once it grows large enough; to write
+ * that snapshot, this store keeps its own copy of each journaled data set, loaded on first use.
+ * Each journaled data set has its own lock, so different sets load in parallel.
+ *
+ * Friend statuses are written whole and read without a lock. The message history is kept
+ * in a MessageStore.
+ */
+public class JsonFileDataStore implements DataStore {
+
+    private static final String LOG_TAG = "JSON File Data Store";
+
+    private static final String SELF_FILENAME = "self.json";
+    private static final String SELF_STATUS_FILENAME = "selfStatus.json";
+    private static final String FRIENDS_FILENAME = "friends.json";
+    private static final String FRIEND_STATUS_FILENAME_FORMAT_STRING = "%s-friendStatus.json";
+    private static final String LOCAL_RESOURCES_FILENAME = "localResources.json";
+    private static final String DOWNLOADS_FILENAME = "downloads.json";
+    private static final String DOWNLOAD_ARCHIVE_FILENAME = "downloadArchive.json";
+    private static final String COMMIT_FILENAME_SUFFIX = ".commit";
+    private static final String JOURNAL_FILENAME_SUFFIX = ".journal";
+    private static final String MESSAGE_HISTORY_DIRECTORY = "messageHistory";
+
+    private static final String SELF_STATUS_LOCATION_JOURNAL_KEY = "location";
+    private static final String SELF_STATUS_MESSAGE_JOURNAL_KEY = "message";
+
+    private final File mDirectory;
+    private final MessageStore mMessageStore;
+
+    private final Object mSelfStatusLock = new Object();
+    private Data.Status mSelfStatus;
+    private Journal mSelfStatusJournal;
+
+    private final Object mFriendsLock = new Object();
+    private LinkedHashMap<String, Data.Friend> mFriends;
+    private Journal mFriendsJournal;
+
+    private final Object mFriendStatusesLock = new Object();
+
+    private final Object mLocalResourcesLock = new Object();
+    private LinkedHashMap<String, Data.LocalResource> mLocalResources;
+    private Journal mLocalResourcesJournal;
+
+    // Guards both in-progress and finished downloads, as downloads move between them
+    private final Object mDownloadsLock = new Object();
+    private LinkedHashMap<String, Data.Download> mDownloads;
+    private Journal mDownloadsJournal;
+    private LinkedHashMap<String, Data.Download> mArchivedDownloads;
+    private Journal mDownloadArchiveJournal;
+
+    public JsonFileDataStore(File directory) {
+        mDirectory = directory;
+        mMessageStore = new MessageStore(new File(directory, MESSAGE_HISTORY_DIRECTORY));
+    }
+
+    @Override
+    public void open() throws Utils.ApplicationError {
+        // Complete any writes interrupted after the commit file was written. Once this is
+        // done, a commit file only exists while its write is in progress, so readers can
+        // ignore commit files and don't need to take a lock.
+        mDirectory.mkdirs();
+        String[] children = mDirectory.list();
+        if (children == null) {
+            throw new Utils.ApplicationError(LOG_TAG, "failed to list data directory");
+        }
+        for (String child : children) {
+            if (child.endsWith(COMMIT_FILENAME_SUFFIX)) {
+                commitFile(
+                    new File(mDirectory, child),
+                    new File(mDirectory, child.substring(0, child.length() - COMMIT_FILENAME_SUFFIX.length())));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !new File(mDirectory, SELF_FILENAME).exists();
+    }
+
+    @Override
+    public void reset() throws Utils.ApplicationError {
+        // Warning: deletes all files in the data directory (not recursively), and the message history
+        synchronized(mSelfStatusLock) {
+            synchronized(mFriendsLock) {
+                synchronized(mFriendStatusesLock) {
+                    synchronized(mLocalResourcesLock) {
+                        synchronized(mDownloadsLock) {
+                            mMessageStore.reset();
+                            mDirectory.mkdirs();
+                            boolean deleteFailed = false;
+                            for (String child : mDirectory.list()) {
+                                File file = new File(mDirectory, child);
+                                if (file.isFile()) {
+                                    if (!file.delete()) {
+                                        deleteFailed = true;
+                                        // Keep attempting to delete remaining files...
+                                    }
+                                }
+                            }
+                            mSelfStatus = null;
+                            mSelfStatusJournal = null;
+                            mFriends = null;
+                            mFriendsJournal = null;
+                            mLocalResources = null;
+                            mLocalResourcesJournal = null;
+                            mDownloads = null;
+                            mDownloadsJournal = null;
+                            mArchivedDownloads = null;
+                            mDownloadArchiveJournal = null;
+                            if (deleteFailed) {
+                                throw new Utils.ApplicationError(LOG_TAG, "delete data file failed");
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public Data.Self getSelf() throws Utils.ApplicationError, Data.DataNotFoundError {
+        return readFile(SELF_FILENAME, Data.Self.class);
+    }
+
+    @Override
+    public void putSelf(Data.Self self) throws Utils.ApplicationError {
+        writeFile(SELF_FILENAME, self);
+    }
+
+    @Override
+    public Data.Status getSelfStatus() throws Utils.ApplicationError, Data.DataNotFoundError {
+        synchronized(mSelfStatusLock) {
+            Data.Status status = loadSelfStatus();
+            if (status == null) {
+                throw new Data.DataNotFoundError();
+            }
+            return status;
+        }
+    }
+
+    private Data.Status loadSelfStatus() throws Utils.ApplicationError {
+        // Returns null when there's no self status
+        if (mSelfStatusJournal == null) {
+            Data.Status status = null;
+            try {
+                status = readFile(SELF_STATUS_FILENAME, Data.Status.class);
+            } catch (Data.DataNotFoundError e) {
+            }
+            final boolean[] found = new boolean[] {status != null};
+            final List<Data.Message> messages =
+                    (status != null) ? new ArrayList<Data.Message>(status.mMessages) : new ArrayList<Data.Message>();
+            final Data.Location[] location =
+                    new Data.Location[] {(status != null) ? status.mLocation : new Data.Location(null, 0, 0, 0, null)};
+            Journal journal = openJournal(SELF_STATUS_FILENAME);
+            journal.replay(new Journal.Replayer() {
+                @Override
+                public void replay(Journal.Record record) throws Utils.ApplicationError {
+                    found[0] = true;
+                    if (record.mKey.equals(SELF_STATUS_LOCATION_JOURNAL_KEY)) {
+                        location[0] = Json.fromJson(record.mValue, Data.Location.class);
+                    } else if (record.mKey.equals(SELF_STATUS_MESSAGE_JOURNAL_KEY)) {
+                        Data.Message message = Json.fromJson(record.mValue, Data.Message.class);
+                        // Skip messages already included in the snapshot
+                        for (Data.Message existingMessage : messages) {
+                            if (existingMessage.mTimestamp.equals(message.mTimestamp) &&
+                                    existingMessage.mContent.equals(message.mContent)) {
+                                return;
+                            }
+                        }
+                        Data.addStatusMessageHelper(messages, message);
+                    }
+                }
+            });
+            mSelfStatus = found[0] ? new Data.Status(messages, location[0]) : null;
+            mSelfStatusJournal = journal;
+        }
+        return mSelfStatus;
+    }
+
+    @Override
+    public void putSelfStatusLocation(Data.Location location) throws Utils.ApplicationError {
+        synchronized(mSelfStatusLock) {
+            Data.Status status = loadSelfStatus();
+            mSelfStatusJournal.put(SELF_STATUS_LOCATION_JOURNAL_KEY, location);
+            mSelfStatus = new Data.Status(
+                    (status != null) ? status.mMessages : new ArrayList<Data.Message>(),
+                    location);
+            compactSelfStatusIfDue();
+        }
+    }
+
+    @Override
+    public void addSelfStatusMessage(Data.Message message) throws Utils.ApplicationError {
+        synchronized(mSelfStatusLock) {
+            Data.Status status = loadSelfStatus();
+            List<Data.Message> messages =
+                    (status != null) ? new ArrayList<Data.Message>(status.mMessages) : new ArrayList<Data.Message>();
+            Data.addStatusMessageHelper(messages, message);
+            mSelfStatusJournal.put(SELF_STATUS_MESSAGE_JOURNAL_KEY, message);
+            mSelfStatus = new Data.Status(
+                    messages,
+                    (status != null) ? status.mLocation : new Data.Location(null, 0, 0, 0, null));
+            compactSelfStatusIfDue();
+        }
+    }
+
+    @Override
+    public void removeSelfStatus() throws Utils.ApplicationError {
+        synchronized(mSelfStatusLock) {
+            deleteFile(SELF_STATUS_FILENAME);
+            deleteFile(SELF_STATUS_FILENAME + JOURNAL_FILENAME_SUFFIX);
+            mSelfStatus = null;
+            mSelfStatusJournal = null;
+        }
+    }
+
+    private void compactSelfStatusIfDue() throws Utils.ApplicationError {
+        if (mSelfStatusJournal.isCompactionDue(0)) {
+            writeFile(SELF_STATUS_FILENAME, mSelfStatus);
+            mSelfStatusJournal.truncate();
+        }
+    }
+
+    @Override
+    public List<Data.Friend> getFriends() throws Utils.ApplicationError {
+        synchronized(mFriendsLock) {
+            return new ArrayList<Data.Friend>(loadFriends().values());
+        }
+    }
+
+    private LinkedHashMap<String, Data.Friend> loadFriends() throws Utils.ApplicationError {
+        if (mFriends == null) {
+            final LinkedHashMap<String, Data.Friend> friends = new LinkedHashMap<String, Data.Friend>();
+            try {
+                for (Data.Friend friend : readFile(FRIENDS_FILENAME, Data.Friend[].class)) {
+                    friends.put(friend.mId, friend);
+                }
+            } catch (Data.DataNotFoundError e) {
+            }
+            Journal journal = openJournal(FRIENDS_FILENAME);
+            journal.replay(new Journal.Replayer() {
+                @Override
+                public void replay(Journal.Record record) throws Utils.ApplicationError {
+                    friends.remove(record.mKey);
+                    if (record.mOperation == Journal.Record.Operation.PUT) {
+                        friends.put(record.mKey, Json.fromJson(record.mValue, Data.Friend.class));
+                    }
+                }
+            });
+            mFriendsJournal = journal;
+            mFriends = friends;
+        }
+        return mFriends;
+    }
+
+    @Override
+    public void putFriends(List<Data.Friend> friends) throws Utils.ApplicationError {
+        synchronized(mFriendsLock) {
+            LinkedHashMap<String, Data.Friend> currentFriends = loadFriends();
+            for (Data.Friend friend : friends) {
+                mFriendsJournal.put(friend.mId, friend);
+                currentFriends.put(friend.mId, friend);
+            }
+            compactFriendsIfDue();
+        }
+    }
+
+    @Override
+    public void removeFriend(String friendId) throws Utils.ApplicationError {
+        synchronized(mFriendStatusesLock) {
+            deleteFile(String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, friendId));
+        }
+        synchronized(mFriendsLock) {
+            loadFriends().remove(friendId);
+            mFriendsJournal.remove(friendId);
+            compactFriendsIfDue();
+        }
+    }
+
+    private void compactFriendsIfDue() throws Utils.ApplicationError {
+        if (mFriendsJournal.isCompactionDue(mFriends.size())) {
+            writeFile(FRIENDS_FILENAME, new ArrayList<Data.Friend>(mFriends.values()));
+            mFriendsJournal.truncate();
+        }
+    }
+
+    @Override
+    public Data.Status getFriendStatus(String friendId) throws Utils.ApplicationError, Data.DataNotFoundError {
+        return readFile(String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, friendId), Data.Status.class);
+    }
+
+    @Override
+    public void putFriendStatus(String friendId, Data.Status status) throws Utils.ApplicationError {
+        synchronized(mFriendStatusesLock) {
+            writeFile(String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, friendId), status);
+        }
+    }
+
+    @Override
+    public List<Data.LocalResource> getLocalResources() throws Utils.ApplicationError {
+        synchronized(mLocalResourcesLock) {
+            return new ArrayList<Data.LocalResource>(loadLocalResources().values());
+        }
+    }
+
+    private LinkedHashMap<String, Data.LocalResource> loadLocalResources() throws Utils.ApplicationError {
+        if (mLocalResources == null) {
+            final LinkedHashMap<String, Data.LocalResource> localResources = new LinkedHashMap<String, Data.LocalResource>();
+            try {
+                for (Data.LocalResource localResource : readFile(LOCAL_RESOURCES_FILENAME, Data.LocalResource[].class)) {
+                    localResources.put(localResource.mResourceId, localResource);
+                }
+            } catch (Data.DataNotFoundError e) {
+            }
+            Journal journal = openJournal(LOCAL_RESOURCES_FILENAME);
+            journal.replay(new Journal.Replayer() {
+                @Override
+                public void replay(Journal.Record record) throws Utils.ApplicationError {
+                    localResources.remove(record.mKey);
+                    if (record.mOperation == Journal.Record.Operation.PUT) {
+                        localResources.put(record.mKey, Json.fromJson(record.mValue, Data.LocalResource.class));
+                    }
+                }
+            });
+            mLocalResourcesJournal = journal;
+            mLocalResources = localResources;
+        }
+        return mLocalResources;
+    }
+
+    @Override
+    public void putLocalResources(List<Data.LocalResource> localResources) throws Utils.ApplicationError {
+        synchronized(mLocalResourcesLock) {
+            LinkedHashMap<String, Data.LocalResource> currentLocalResources = loadLocalResources();
+            for (Data.LocalResource localResource : localResources) {
+                mLocalResourcesJournal.put(localResource.mResourceId, localResource);
+                currentLocalResources.put(localResource.mResourceId, localResource);
+            }
+            if (mLocalResourcesJournal.isCompactionDue(mLocalResources.size())) {
+                writeFile(LOCAL_RESOURCES_FILENAME, new ArrayList<Data.LocalResource>(mLocalResources.values()));
+                mLocalResourcesJournal.truncate();
+            }
+        }
+    }
+
+    @Override
+    public List<Data.Download> getInProgressDownloads() throws Utils.ApplicationError {
+        synchronized(mDownloadsLock) {
+            loadDownloads();
+            return new ArrayList<Data.Download>(mDownloads.values());
+        }
+    }
+
+    @Override
+    public List<Data.Download> getInProgressDownloads(String friendId) throws Utils.ApplicationError {
+        List<Data.Download> downloads = new ArrayList<Data.Download>();
+        for (Data.Download download : getInProgressDownloads()) {
+            if (download.mFriendId.equals(friendId)) {
+                downloads.add(download);
+            }
+        }
+        return downloads;
+    }
+
+    @Override
+    public List<Data.Download> getFinishedDownloads() throws Utils.ApplicationError {
+        synchronized(mDownloadsLock) {
+            loadDownloads();
+            return new ArrayList<Data.Download>(mArchivedDownloads.values());
+        }
+    }
+
+    private void loadDownloads() throws Utils.ApplicationError {
+        if (mDownloads == null) {
+            LinkedHashMap<String, Data.Download> downloads = loadDownloadsFile(DOWNLOADS_FILENAME);
+            Journal downloadsJournal = openJournal(DOWNLOADS_FILENAME);
+            replayDownloads(downloadsJournal, downloads);
+            LinkedHashMap<String, Data.Download> archivedDownloads = loadDownloadsFile(DOWNLOAD_ARCHIVE_FILENAME);
+            Journal downloadArchiveJournal = openJournal(DOWNLOAD_ARCHIVE_FILENAME);
+            replayDownloads(downloadArchiveJournal, archivedDownloads);
+            mDownloads = downloads;
+            mDownloadsJournal = downloadsJournal;
+            mArchivedDownloads = archivedDownloads;
+            mDownloadArchiveJournal = downloadArchiveJournal;
+            // Move cancelled and completed downloads stored before there was an archive
+            for (Data.Download download : new ArrayList<Data.Download>(downloads.values())) {
+                if (download.mState != Data.Download.State.IN_PROGRESS) {
+                    putDownloadHelper(download);
+                }
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Data.Download> loadDownloadsFile(String filename) throws Utils.ApplicationError {
+        LinkedHashMap<String, Data.Download> downloads = new LinkedHashMap<String, Data.Download>();
+        try {
+            for (Data.Download download : readFile(filename, Data.Download[].class)) {
+                downloads.put(getDownloadKey(download.mFriendId, download.mResourceId), download);
+            }
+        } catch (Data.DataNotFoundError e) {
+        }
+        return downloads;
+    }
+
+    private static void replayDownloads(Journal journal, final LinkedHashMap<String, Data.Download> downloads) throws Utils.ApplicationError {
+        journal.replay(new Journal.Replayer() {
+            @Override
+            public void replay(Journal.Record record) throws Utils.ApplicationError {
+                downloads.remove(record.mKey);
+                if (record.mOperation == Journal.Record.Operation.PUT) {
+                    downloads.put(record.mKey, Json.fromJson(record.mValue, Data.Download.class));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void putDownload(Data.Download download) throws Utils.ApplicationError {
+        synchronized(mDownloadsLock) {
+            loadDownloads();
+            putDownloadHelper(download);
+        }
+    }
+
+    @Override
+    public void removeDownloads(String friendId) throws Utils.ApplicationError {
+        synchronized(mDownloadsLock) {
+            loadDownloads();
+            removeDownloadsHelper(friendId, mDownloads, mDownloadsJournal);
+            removeDownloadsHelper(friendId, mArchivedDownloads, mDownloadArchiveJournal);
+            compactDownloadsIfDue();
+        }
+    }
+
+    private static void removeDownloadsHelper(
+            String friendId, LinkedHashMap<String, Data.Download> downloads, Journal journal) throws Utils.ApplicationError {
+        for (Data.Download download : new ArrayList<Data.Download>(downloads.values())) {
+            if (download.mFriendId.equals(friendId)) {
+                String key = getDownloadKey(download.mFriendId, download.mResourceId);
+                journal.remove(key);
+                downloads.remove(key);
+            }
+        }
+    }
+
+    private void putDownloadHelper(Data.Download download) throws Utils.ApplicationError {
+        // In-progress downloads are journaled in downloads.json; cancelled and completed downloads
+        // in the archive, so the in-progress set stays small
+        String key = getDownloadKey(download.mFriendId, download.mResourceId);
+        if (download.mState == Data.Download.State.IN_PROGRESS) {
+            mDownloadsJournal.put(key, download);
+            mDownloads.put(key, download);
+            if (mArchivedDownloads.remove(key) != null) {
+                mDownloadArchiveJournal.remove(key);
+            }
+        } else {
+            mDownloadArchiveJournal.put(key, download);
+            mArchivedDownloads.put(key, download);
+            if (mDownloads.remove(key) != null) {
+                mDownloadsJournal.remove(key);
+            }
+        }
+        compactDownloadsIfDue();
+    }
+
+    private void compactDownloadsIfDue() throws Utils.ApplicationError {
+        if (mDownloadsJournal.isCompactionDue(mDownloads.size())) {
+            writeFile(DOWNLOADS_FILENAME, new ArrayList<Data.Download>(mDownloads.values()));
+            mDownloadsJournal.truncate();
+        }
+        if (mDownloadArchiveJournal.isCompactionDue(mArchivedDownloads.size())) {
+            writeFile(DOWNLOAD_ARCHIVE_FILENAME, new ArrayList<Data.Download>(mArchivedDownloads.values()));
+            mDownloadArchiveJournal.truncate();
+        }
+    }
+
+    private static String getDownloadKey(String friendId, String resourceId) {
+        return friendId + "/" + resourceId;
+    }
+
+    @Override
+    public List<String> getMessageHistoryAuthors() throws Utils.ApplicationError {
+        return mMessageStore.getAuthors();
+    }
+
+    @Override
+    public boolean hasMessageHistory(String author) throws Utils.ApplicationError {
+        return mMessageStore.hasMessages(author);
+    }
+
+    @Override
+    public void appendMessageHistory(String author, List<Data.Message> messages) throws Utils.ApplicationError {
+        mMessageStore.appendMessages(author, messages);
+    }
+
+    @Override
+    public List<Data.Message> getMessageHistory(String author, Date from, Date to, int limit) throws Utils.ApplicationError {
+        return mMessageStore.getMessages(author, from, to, limit);
+    }
+
+    @Override
+    public void removeMessageHistory(String author) throws Utils.ApplicationError {
+        mMessageStore.removeMessages(author);
+    }
+
+    private Journal openJournal(String filename) {
+        return new Journal(new File(mDirectory, filename + JOURNAL_FILENAME_SUFFIX));
+    }
+
+    private <T> T readFile(String filename, Class<T> type) throws Utils.ApplicationError, Data.DataNotFoundError {
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(new File(mDirectory, filename)));
+            return Json.fromJson(inputStream, type);
+        } catch (FileNotFoundException e) {
+            throw new Data.DataNotFoundError();
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void writeFile(String filename, Object value) throws Utils.ApplicationError {
+        OutputStream outputStream = null;
+        try {
+            File commitFile = new File(mDirectory, filename + COMMIT_FILENAME_SUFFIX);
+            File file = new File(mDirectory, filename);
+            outputStream = new BufferedOutputStream(new FileOutputStream(commitFile));
+            Json.toJson(value, outputStream);
+            outputStream.close();
+            commitFile(commitFile, file);
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void commitFile(File commitFile, File file) throws Utils.ApplicationError {
+        // On Android, rename replaces an existing file atomically, so a concurrent reader
+        // sees either the old or the new data file, never a missing one
+        if (!commitFile.renameTo(file)) {
+            file.delete();
+            if (!commitFile.renameTo(file)) {
+                throw new Utils.ApplicationError(LOG_TAG, "failed to commit file");
+            }
+        }
+    }
+
+    private void deleteFile(String filename) throws Utils.ApplicationError {
+        File file = new File(mDirectory, filename);
+        if (!file.delete()) {
+            if (file.exists()) {
+                throw new Utils.ApplicationError(LOG_TAG, "failed to delete file");
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import ca.psiphon.ploggy.Utils.ApplicationError;
 
 /**
@@ -49,6 +50,8 @@ public class LocationMonitor implements android.location.LocationListener {
     Runnable mStopLocationUpdatesTask;
     Location mLastReportedLocation;
     Location mCurrentLocation;
+    boolean mFixInProgress;
+    long mLastFixFinishTime;
 
     LocationMonitor(Engine engine) {
 
@@ -72,6 +75,21 @@ public class LocationMonitor implements android.location.LocationListener {
         // Ensure removeUpdates is called
         // TODO: ok that posting this task makes stop() asynchronous?
         mHandler.post(mStopLocationUpdatesTask);
+        mFixInProgress = false;
+    }
+
+    public void reschedule() throws Utils.ApplicationError {
+        // Apply a changed fix frequency, or power mode, to the next fix without restarting. A
+        // fix in progress schedules the next fix with the new frequency when it finishes; a
+        // changed fix period applies from the next fix. Call on the main thread.
+        if (mFixInProgress || mLastFixFinishTime == 0) {
+            return;
+        }
+        mHandler.removeCallbacks(mStartLocationFixTask);
+        long delay = mLastFixFinishTime
+                + mEngine.getLocationFixFrequencyInMilliseconds()
+                - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mStartLocationFixTask, Math.max(0, delay));
     }
 
     private void initRunnables() {
@@ -81,6 +99,7 @@ public class LocationMonitor implements android.location.LocationListener {
             @Override
             public void run() {
                 try {
+                    mFixInProgress = true;
                     LocationManager locationManager = (LocationManager)mEngine.getContext().getSystemService(Context.LOCATION_SERVICE);
 
                     // Use last known location already present in all providers (they don't need to be enabled)
@@ -119,13 +138,15 @@ public class LocationMonitor implements android.location.LocationListener {
                 try {
                     LocationManager locationManager = (LocationManager)mEngine.getContext().getSystemService(Context.LOCATION_SERVICE);
                     locationManager.removeUpdates(finalLocationMonitor);
+                    mFixInProgress = false;
+                    mLastFixFinishTime = SystemClock.elapsedRealtime();
 
                     reportLocation();
 
                     // TODO: simulate scheduleAtFixedrate by adjusting next fix delay to account for elapsed fix time period
                     mHandler.postDelayed(
                             mStartLocationFixTask,
-                            60*1000*mEngine.getIntPreference(R.string.preferenceLocationFixFrequencyInMinutes));
+                            mEngine.getLocationFixFrequencyInMilliseconds());
                 } catch (Utils.ApplicationError e) {
                     Log.addEntry(LOG_TAG, "finish location fix failed");
                 }
@@ -173,7 +194,10 @@ public class LocationMonitor implements android.location.LocationListener {
                     Events.post(new Events.NewSelfLocation(mLastReportedLocation, address));
                 }
             };
-            mEngine.submitTask(task);
+            if (mEngine.submitTask(TaskExecutor.TaskClass.GEOCODE, task) == null) {
+                // Geocoder is backed up; report the location without an address
+                Events.post(new Events.NewSelfLocation(mLastReportedLocation, null));
+            }
 
         } else {
             Events.post(new Events.NewSelfLocation(mLastReportedLocation, null));
@@ -49,13 +49,19 @@ public class MessageAdapter extends BaseAdapter {
 
     // TODO: support multiple attachments
 
+    // In ALL_MESSAGES mode, messages are loaded one page at a time as the list is scrolled
+    private static final int MESSAGE_PAGE_SIZE = 50;
+
     public enum Mode {ALL_MESSAGES, FRIEND_MESSAGES, SELF_MESSAGES}
 
     private final Context mContext;
     private final Mode mMode;
     private List<Data.AnnotatedMessage> mAnnotatedMessages;
+    private boolean mLoadedAllAnnotatedMessages;
     private final String mFriendId;
     private List<Data.Message> mMessages;
+    // Data version of the loaded messages, or -1 when not loaded
+    private long mMessagesVersion = -1;
 
     public MessageAdapter(Context context, Mode mode) throws Utils.ApplicationError {
         this(context, mode, null);
@@ -69,20 +75,61 @@ public class MessageAdapter extends BaseAdapter {
     }
 
     public void updateMessages() throws Utils.ApplicationError {
+        // Messages are only reloaded when they've changed; the views are always redrawn,
+        // to update download state and "time ago" displays
+        Data data = Data.getInstance();
+        long version = 0;
         switch (mMode) {
         case ALL_MESSAGES:
-            mAnnotatedMessages = Data.getInstance().getAllMessages();
+            version = data.getVersion(Data.Collection.ALL_MESSAGES);
             break;
         case FRIEND_MESSAGES:
-            mMessages = Data.getInstance().getFriendStatus(mFriendId).mMessages;
+            version = data.getFriendVersion(mFriendId);
             break;
         case SELF_MESSAGES:
-            mMessages = Data.getInstance().getSelfStatus().mMessages;
+            version = data.getVersion(Data.Collection.SELF_STATUS);
             break;
         }
+        if (version != mMessagesVersion) {
+            switch (mMode) {
+            case ALL_MESSAGES:
+                // Reload as many messages as are already shown, so the list doesn't shrink under the user
+                int count = MESSAGE_PAGE_SIZE;
+                if (mAnnotatedMessages != null) {
+                    count = Math.max(count, mAnnotatedMessages.size());
+                }
+                mAnnotatedMessages = data.getMessages(null, count);
+                mLoadedAllAnnotatedMessages = (mAnnotatedMessages.size() < count);
+                break;
+            case FRIEND_MESSAGES:
+                mMessages = data.getFriendStatus(mFriendId).mMessages;
+                break;
+            case SELF_MESSAGES:
+                mMessages = data.getSelfStatus().mMessages;
+                break;
+            }
+            mMessagesVersion = version;
+        }
         notifyDataSetChanged();
     }
 
+    private void loadNextAnnotatedMessagesPage() {
+        if (mLoadedAllAnnotatedMessages) {
+            return;
+        }
+        try {
+            List<Data.AnnotatedMessage> nextPage = Data.getInstance().getMessages(
+                    mAnnotatedMessages.get(mAnnotatedMessages.size() - 1), MESSAGE_PAGE_SIZE);
+            mLoadedAllAnnotatedMessages = (nextPage.size() < MESSAGE_PAGE_SIZE);
+            if (nextPage.size() > 0) {
+                mAnnotatedMessages.addAll(nextPage);
+                notifyDataSetChanged();
+            }
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to load messages");
+        }
+    }
+
     @Override
     public View getView(int position, View view, ViewGroup parent) {
         if (view == null) {
@@ -106,6 +153,9 @@ public class MessageAdapter extends BaseAdapter {
             publicIdentity = annotatedMessage.mPublicIdentity;
             friendId = annotatedMessage.mFriendId;
             message = annotatedMessage.mMessage;
+            if (position == mAnnotatedMessages.size() - 1) {
+                loadNextAnnotatedMessagesPage();
+            }
             break;
         case FRIEND_MESSAGES:
         case SELF_MESSAGES:
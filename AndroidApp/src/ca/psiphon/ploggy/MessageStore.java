@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import android.util.LruCache;
+
+/**
+ * Persistent message history.
+ *
+ * A status only carries the most recent Protocol.MAX_MESSAGE_COUNT messages; this store
+ * keeps every message seen locally, for self and for each friend (the author).
+ *
+ * Each author's messages are appended, in arrival order, to numbered segment files with one
+ * JSON message per line. A segment is closed once it holds SEGMENT_MESSAGE_COUNT messages.
+ * A small per-author index records each segment's message count and timestamp range, so a
+ * read by time range only opens segments which overlap the range. Only indexes are held in
+ * memory, in a bounded cache.
+ */
+public class MessageStore {
+
+    private static final String LOG_TAG = "Message Store";
+
+    private static final int SEGMENT_MESSAGE_COUNT = 256;
+    private static final int INDEX_CACHE_SIZE = 32;
+
+    private static final String INDEX_FILENAME = "index.json";
+    private static final String SEGMENT_FILENAME_FORMAT_STRING = "%d.segment";
+    private static final String COMMIT_FILENAME_SUFFIX = ".commit";
+
+    public static class Segment {
+        public final int mNumber;
+        public final int mMessageCount;
+        public final Date mEarliestTimestamp;
+        public final Date mLatestTimestamp;
+
+        public Segment(
+                int number,
+                int messageCount,
+                Date earliestTimestamp,
+                Date latestTimestamp) {
+            mNumber = number;
+            mMessageCount = messageCount;
+            mEarliestTimestamp = earliestTimestamp;
+            mLatestTimestamp = latestTimestamp;
+        }
+
+        boolean overlaps(Date from, Date to) {
+            if (mEarliestTimestamp == null || mLatestTimestamp == null) {
+                return true;
+            }
+            return (from == null || !mLatestTimestamp.before(from)) &&
+                    (to == null || mEarliestTimestamp.before(to));
+        }
+    }
+
+    private final File mDirectory;
+    private final LruCache<String, List<Segment>> mIndexes;
+
+    public MessageStore(File directory) {
+        mDirectory = directory;
+        mIndexes = new LruCache<String, List<Segment>>(INDEX_CACHE_SIZE);
+    }
+
+    public synchronized List<String> getAuthors() {
+        List<String> authors = new ArrayList<String>();
+        File[] children = mDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    authors.add(child.getName());
+                }
+            }
+        }
+        return authors;
+    }
+
+    public synchronized boolean hasMessages(String author) throws Utils.ApplicationError {
+        return getIndex(author).size() > 0;
+    }
+
+    public synchronized void appendMessages(String author, List<Data.Message> messages) throws Utils.ApplicationError {
+        // Messages are expected in arrival order, oldest first
+        if (messages.size() == 0) {
+            return;
+        }
+        List<Segment> index = new ArrayList<Segment>(getIndex(author));
+        File authorDirectory = getAuthorDirectory(author);
+        authorDirectory.mkdirs();
+        int next = 0;
+        while (next < messages.size()) {
+            Segment segment;
+            if (index.size() > 0 && index.get(index.size() - 1).mMessageCount < SEGMENT_MESSAGE_COUNT) {
+                segment = index.remove(index.size() - 1);
+            } else {
+                int number = index.size() > 0 ? index.get(index.size() - 1).mNumber + 1 : 0;
+                segment = new Segment(number, 0, null, null);
+            }
+            int end = Math.min(messages.size(), next + SEGMENT_MESSAGE_COUNT - segment.mMessageCount);
+            StringBuilder lines = new StringBuilder();
+            Date earliestTimestamp = segment.mEarliestTimestamp;
+            Date latestTimestamp = segment.mLatestTimestamp;
+            for (Data.Message message : messages.subList(next, end)) {
+                // Newline-prefixed, as in Journal, so a torn append can't corrupt the next record
+                lines.append("\n");
+                lines.append(Json.toJson(message));
+                if (message.mTimestamp != null) {
+                    if (earliestTimestamp == null || message.mTimestamp.before(earliestTimestamp)) {
+                        earliestTimestamp = message.mTimestamp;
+                    }
+                    if (latestTimestamp == null || message.mTimestamp.after(latestTimestamp)) {
+                        latestTimestamp = message.mTimestamp;
+                    }
+                }
+            }
+            appendToFile(new File(authorDirectory, String.format(SEGMENT_FILENAME_FORMAT_STRING, segment.mNumber)), lines.toString());
+            index.add(new Segment(segment.mNumber, segment.mMessageCount + end - next, earliestTimestamp, latestTimestamp));
+            next = end;
+        }
+        writeIndex(author, index);
+        mIndexes.put(author, index);
+    }
+
+    public synchronized List<Data.Message> getMessages(String author, Date from, Date to, int limit) throws Utils.ApplicationError {
+        // Returns the most recent messages with timestamps in [from, to), newest first, up to limit.
+        // A null from or to leaves that end of the range open.
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        File authorDirectory = getAuthorDirectory(author);
+        List<Segment> index = getIndex(author);
+        // Segments are in arrival order, which is close to time order, so newer segments are
+        // read first. Once enough messages are found, a segment is only read if its latest
+        // timestamp is newer than the oldest included message; an earlier segment may still
+        // hold newer messages, so every segment's range is checked.
+        Date oldestIncluded = null;
+        for (int i = index.size() - 1; i >= 0; i--) {
+            Segment segment = index.get(i);
+            if (!segment.overlaps(from, to)) {
+                continue;
+            }
+            if (messages.size() >= limit && oldestIncluded != null &&
+                    segment.mLatestTimestamp != null && segment.mLatestTimestamp.before(oldestIncluded)) {
+                continue;
+            }
+            for (Data.Message message : readSegment(new File(authorDirectory, String.format(SEGMENT_FILENAME_FORMAT_STRING, segment.mNumber)))) {
+                if (message.mTimestamp == null ||
+                        (from != null && message.mTimestamp.before(from)) ||
+                        (to != null && !message.mTimestamp.before(to))) {
+                    continue;
+                }
+                messages.add(message);
+            }
+            Collections.sort(messages, new Comparator<Data.Message>() {
+                @Override
+                public int compare(Data.Message a, Data.Message b) {
+                    return b.mTimestamp.compareTo(a.mTimestamp);
+                }
+            });
+            if (messages.size() > limit) {
+                messages.subList(limit, messages.size()).clear();
+            }
+            if (messages.size() > 0) {
+                oldestIncluded = messages.get(messages.size() - 1).mTimestamp;
+            }
+        }
+        return messages;
+    }
+
+    public synchronized void removeMessages(String author) throws Utils.ApplicationError {
+        mIndexes.remove(author);
+        deleteDirectory(getAuthorDirectory(author));
+    }
+
+    public synchronized void reset() throws Utils.ApplicationError {
+        mIndexes.evictAll();
+        deleteDirectory(mDirectory);
+    }
+
+    private File getAuthorDirectory(String author) {
+        return new File(mDirectory, author);
+    }
+
+    private List<Segment> getIndex(String author) throws Utils.ApplicationError {
+        List<Segment> index = mIndexes.get(author);
+        if (index == null) {
+            File indexFile = new File(getAuthorDirectory(author), INDEX_FILENAME);
+            File commitFile = new File(getAuthorDirectory(author), INDEX_FILENAME + COMMIT_FILENAME_SUFFIX);
+            if (commitFile.exists()) {
+                indexFile.delete();
+                commitFile.renameTo(indexFile);
+            }
+            try {
+                index = new ArrayList<Segment>(Arrays.asList(readFile(indexFile, Segment[].class)));
+            } catch (FileNotFoundException e) {
+                index = new ArrayList<Segment>();
+            }
+            mIndexes.put(author, index);
+        }
+        return index;
+    }
+
+    private void writeIndex(String author, List<Segment> index) throws Utils.ApplicationError {
+        // Same commit-then-rename scheme as Data
+        File indexFile = new File(getAuthorDirectory(author), INDEX_FILENAME);
+        File commitFile = new File(getAuthorDirectory(author), INDEX_FILENAME + COMMIT_FILENAME_SUFFIX);
+        OutputStream outputStream = null;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(commitFile));
+            Json.toJson(index, outputStream);
+            outputStream.close();
+            indexFile.delete();
+            commitFile.renameTo(indexFile);
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static List<Data.Message> readSegment(File file) throws Utils.ApplicationError {
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                try {
+                    messages.add(Json.fromJson(line, Data.Message.class));
+                } catch (Utils.ApplicationError e) {
+                    Log.addEntry(LOG_TAG, "skipped incomplete message: " + file.getName());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Index written, but segment lost: treat as empty
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return messages;
+    }
+
+    private static <T> T readFile(File file, Class<T> type) throws Utils.ApplicationError, FileNotFoundException {
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(file));
+            return Json.fromJson(inputStream, type);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void appendToFile(File file, String value) throws Utils.ApplicationError {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file, true);
+            outputStream.write(value.getBytes("UTF-8"));
+            outputStream.close();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void deleteDirectory(File directory) throws Utils.ApplicationError {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    deleteDirectory(child);
+                } else if (!child.delete() && child.exists()) {
+                    throw new Utils.ApplicationError(LOG_TAG, "failed to delete file");
+                }
+            }
+        }
+        if (!directory.delete() && directory.exists()) {
+            throw new Utils.ApplicationError(LOG_TAG, "failed to delete directory");
+        }
+    }
+}
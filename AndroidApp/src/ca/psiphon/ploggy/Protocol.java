@@ -31,7 +31,12 @@ public class Protocol {
     public static final String PUSH_STATUS_REQUEST_PATH = "/pushStatus";
 
     public static final String PULL_STATUS_REQUEST_PATH = "/pullStatus";
-    public static final String PULL_STATUS_RESPONSE_MIME_TYPE = "application/json";
+
+    // Status encodings, negotiated by content type; see StatusCodec
+    public static final String STATUS_JSON_MIME_TYPE = "application/json";
+    public static final String STATUS_BINARY_MIME_TYPE = "application/x-ploggy-status";
+    // Either status encoding may also be compressed, negotiated by Accept-Encoding
+    public static final String STATUS_COMPRESSED_CONTENT_ENCODING = "gzip";
 
     public static final String DOWNLOAD_REQUEST_PATH = "/download";
     public static final String DOWNLOAD_REQUEST_RESOURCE_ID_PARAMETER = "resourceId";
@@ -54,8 +54,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Random;
 
 import org.json.JSONArray;
@@ -96,8 +94,8 @@ public class Robohash {
             Identity.PublicIdentity publicIdentity) {
         if (publicIdentity != null) {
             try {
-                imageView.setImageBitmap(Robohash.getRobohash(
-                        context, cacheCandidate, publicIdentity.getFingerprint()));
+                imageView.setImageBitmap(Robohash.getRobohashFromDigest(
+                        context, cacheCandidate, publicIdentity.getAvatarDigest()));
                 return;
             } catch (Utils.ApplicationError e) {
                 Log.addEntry(LOG_TAG, "failed to create image");
@@ -106,14 +104,11 @@ public class Robohash {
         imageView.setImageResource(R.drawable.ic_unknown_avatar);
     }
 
-    public static Bitmap getRobohash(
+    public static Bitmap getRobohashFromDigest(
             Context context,
             boolean cacheCandidate,
-            byte[] data) throws Utils.ApplicationError {
+            byte[] digest) throws Utils.ApplicationError {
         try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            byte[] digest = sha1.digest(data);
-
             String key = Utils.formatFingerprint(digest);
             Bitmap cachedBitmap = mCache.get(key);
             if (cachedBitmap != null) {
@@ -161,8 +156,6 @@ public class Robohash {
             throw new Utils.ApplicationError(LOG_TAG, e);
         } catch (JSONException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new Utils.ApplicationError(LOG_TAG, e);
         }
     }
 
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * DataStore which keeps each data set in an SQLite table.
+ *
+ * Records are stored as JSON, with the fields used for lookups -- IDs, download state,
+ * message author and timestamp -- also stored in indexed columns. Unlike JsonFileDataStore,
+ * nothing is held in memory here and no change requires rewriting a data set, so lookups
+ * such as "in-progress downloads for a friend" or "messages by an author in a time range"
+ * are index lookups.
+ *
+ * SQLiteDatabase is thread-safe; multi-statement changes run in a transaction.
+ */
+public class SqliteDataStore implements DataStore {
+
+    private static final String LOG_TAG = "SQLite Data Store";
+
+    private static final int DATABASE_VERSION = 1;
+
+    // Single row tables use this key
+    private static final String SINGLE_ROW_ID = "0";
+
+    private static final String[] CREATE_STATEMENTS = new String[] {
+        "CREATE TABLE self (id INTEGER PRIMARY KEY, json TEXT NOT NULL)",
+        "CREATE TABLE self_status (id INTEGER PRIMARY KEY, location TEXT)",
+        "CREATE TABLE self_status_messages (id INTEGER PRIMARY KEY AUTOINCREMENT, json TEXT NOT NULL)",
+        "CREATE TABLE friends (id TEXT PRIMARY KEY, json TEXT NOT NULL)",
+        "CREATE TABLE friend_statuses (friend_id TEXT PRIMARY KEY, json TEXT NOT NULL)",
+        "CREATE TABLE local_resources (resource_id TEXT PRIMARY KEY, json TEXT NOT NULL)",
+        "CREATE TABLE downloads (friend_id TEXT NOT NULL, resource_id TEXT NOT NULL, state TEXT NOT NULL, json TEXT NOT NULL, PRIMARY KEY (friend_id, resource_id))",
+        "CREATE INDEX downloads_state_friend_id ON downloads (state, friend_id)",
+        "CREATE TABLE messages (author TEXT NOT NULL, timestamp INTEGER, json TEXT NOT NULL)",
+        "CREATE INDEX messages_author_timestamp ON messages (author, timestamp)"
+    };
+
+    private static final String[] TABLES = new String[] {
+        "self", "self_status", "self_status_messages", "friends", "friend_statuses",
+        "local_resources", "downloads", "messages"
+    };
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase database) {
+            for (String statement : CREATE_STATEMENTS) {
+                database.execSQL(statement);
+            }
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+        }
+    }
+
+    private final DatabaseHelper mDatabaseHelper;
+    private volatile SQLiteDatabase mDatabase;
+
+    public SqliteDataStore(Context context, String name) {
+        mDatabaseHelper = new DatabaseHelper(context, name);
+    }
+
+    @Override
+    public synchronized void open() throws Utils.ApplicationError {
+        try {
+            mDatabase = mDatabaseHelper.getWritableDatabase();
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mDatabaseHelper.close();
+        mDatabase = null;
+    }
+
+    @Override
+    public boolean isEmpty() throws Utils.ApplicationError {
+        return queryJson("SELECT json FROM self", null).size() == 0;
+    }
+
+    @Override
+    public void reset() throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                for (String table : TABLES) {
+                    database.delete(table, null, null);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public Data.Self getSelf() throws Utils.ApplicationError, Data.DataNotFoundError {
+        List<String> rows = queryJson("SELECT json FROM self", null);
+        if (rows.size() == 0) {
+            throw new Data.DataNotFoundError();
+        }
+        return Json.fromJson(rows.get(0), Data.Self.class);
+    }
+
+    @Override
+    public void putSelf(Data.Self self) throws Utils.ApplicationError {
+        ContentValues values = new ContentValues();
+        values.put("id", SINGLE_ROW_ID);
+        values.put("json", Json.toJson(self));
+        replace("self", values);
+    }
+
+    @Override
+    public Data.Status getSelfStatus() throws Utils.ApplicationError, Data.DataNotFoundError {
+        List<String> locationRows = queryJson("SELECT location FROM self_status", null);
+        List<String> messageRows = queryJson(
+                "SELECT json FROM self_status_messages ORDER BY id DESC LIMIT " + Protocol.MAX_MESSAGE_COUNT, null);
+        if (locationRows.size() == 0 && messageRows.size() == 0) {
+            throw new Data.DataNotFoundError();
+        }
+        Data.Location location = new Data.Location(null, 0, 0, 0, null);
+        if (locationRows.size() > 0 && locationRows.get(0) != null) {
+            location = Json.fromJson(locationRows.get(0), Data.Location.class);
+        }
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (String json : messageRows) {
+            messages.add(Json.fromJson(json, Data.Message.class));
+        }
+        return new Data.Status(messages, location);
+    }
+
+    @Override
+    public void putSelfStatusLocation(Data.Location location) throws Utils.ApplicationError {
+        ContentValues values = new ContentValues();
+        values.put("id", SINGLE_ROW_ID);
+        values.put("location", Json.toJson(location));
+        replace("self_status", values);
+    }
+
+    @Override
+    public void addSelfStatusMessage(Data.Message message) throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put("json", Json.toJson(message));
+                database.insertOrThrow("self_status_messages", null, values);
+                database.delete(
+                        "self_status_messages",
+                        "id NOT IN (SELECT id FROM self_status_messages ORDER BY id DESC LIMIT " + Protocol.MAX_MESSAGE_COUNT + ")",
+                        null);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public void removeSelfStatus() throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                database.delete("self_status", null, null);
+                database.delete("self_status_messages", null, null);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public List<Data.Friend> getFriends() throws Utils.ApplicationError {
+        List<Data.Friend> friends = new ArrayList<Data.Friend>();
+        for (String json : queryJson("SELECT json FROM friends", null)) {
+            friends.add(Json.fromJson(json, Data.Friend.class));
+        }
+        return friends;
+    }
+
+    @Override
+    public void putFriends(List<Data.Friend> friends) throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                for (Data.Friend friend : friends) {
+                    ContentValues values = new ContentValues();
+                    values.put("id", friend.mId);
+                    values.put("json", Json.toJson(friend));
+                    database.replaceOrThrow("friends", null, values);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public void removeFriend(String friendId) throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                database.delete("friends", "id = ?", new String[] {friendId});
+                database.delete("friend_statuses", "friend_id = ?", new String[] {friendId});
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public Data.Status getFriendStatus(String friendId) throws Utils.ApplicationError, Data.DataNotFoundError {
+        List<String> rows = queryJson("SELECT json FROM friend_statuses WHERE friend_id = ?", new String[] {friendId});
+        if (rows.size() == 0) {
+            throw new Data.DataNotFoundError();
+        }
+        return Json.fromJson(rows.get(0), Data.Status.class);
+    }
+
+    @Override
+    public void putFriendStatus(String friendId, Data.Status status) throws Utils.ApplicationError {
+        ContentValues values = new ContentValues();
+        values.put("friend_id", friendId);
+        values.put("json", Json.toJson(status));
+        replace("friend_statuses", values);
+    }
+
+    @Override
+    public List<Data.LocalResource> getLocalResources() throws Utils.ApplicationError {
+        List<Data.LocalResource> localResources = new ArrayList<Data.LocalResource>();
+        for (String json : queryJson("SELECT json FROM local_resources", null)) {
+            localResources.add(Json.fromJson(json, Data.LocalResource.class));
+        }
+        return localResources;
+    }
+
+    @Override
+    public void putLocalResources(List<Data.LocalResource> localResources) throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                for (Data.LocalResource localResource : localResources) {
+                    ContentValues values = new ContentValues();
+                    values.put("resource_id", localResource.mResourceId);
+                    values.put("json", Json.toJson(localResource));
+                    database.replaceOrThrow("local_resources", null, values);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public List<Data.Download> getInProgressDownloads() throws Utils.ApplicationError {
+        return queryDownloads(
+                "SELECT json FROM downloads WHERE state = ? ORDER BY rowid",
+                new String[] {Data.Download.State.IN_PROGRESS.name()});
+    }
+
+    @Override
+    public List<Data.Download> getInProgressDownloads(String friendId) throws Utils.ApplicationError {
+        return queryDownloads(
+                "SELECT json FROM downloads WHERE state = ? AND friend_id = ? ORDER BY rowid",
+                new String[] {Data.Download.State.IN_PROGRESS.name(), friendId});
+    }
+
+    @Override
+    public List<Data.Download> getFinishedDownloads() throws Utils.ApplicationError {
+        return queryDownloads(
+                "SELECT json FROM downloads WHERE state != ?",
+                new String[] {Data.Download.State.IN_PROGRESS.name()});
+    }
+
+    private List<Data.Download> queryDownloads(String sql, String[] selectionArgs) throws Utils.ApplicationError {
+        List<Data.Download> downloads = new ArrayList<Data.Download>();
+        for (String json : queryJson(sql, selectionArgs)) {
+            downloads.add(Json.fromJson(json, Data.Download.class));
+        }
+        return downloads;
+    }
+
+    @Override
+    public void putDownload(Data.Download download) throws Utils.ApplicationError {
+        // Updated in place, rather than replaced, to keep the row order used for queue order
+        SQLiteDatabase database = getDatabase();
+        try {
+            ContentValues values = new ContentValues();
+            values.put("state", download.mState.name());
+            values.put("json", Json.toJson(download));
+            database.beginTransaction();
+            try {
+                if (database.update(
+                        "downloads",
+                        values,
+                        "friend_id = ? AND resource_id = ?",
+                        new String[] {download.mFriendId, download.mResourceId}) == 0) {
+                    values.put("friend_id", download.mFriendId);
+                    values.put("resource_id", download.mResourceId);
+                    database.insertOrThrow("downloads", null, values);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public void removeDownloads(String friendId) throws Utils.ApplicationError {
+        try {
+            getDatabase().delete("downloads", "friend_id = ?", new String[] {friendId});
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public List<String> getMessageHistoryAuthors() throws Utils.ApplicationError {
+        return queryJson("SELECT DISTINCT author FROM messages", null);
+    }
+
+    @Override
+    public boolean hasMessageHistory(String author) throws Utils.ApplicationError {
+        return queryJson("SELECT author FROM messages WHERE author = ? LIMIT 1", new String[] {author}).size() > 0;
+    }
+
+    @Override
+    public void appendMessageHistory(String author, List<Data.Message> messages) throws Utils.ApplicationError {
+        SQLiteDatabase database = getDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                for (Data.Message message : messages) {
+                    ContentValues values = new ContentValues();
+                    values.put("author", author);
+                    if (message.mTimestamp != null) {
+                        values.put("timestamp", message.mTimestamp.getTime());
+                    } else {
+                        values.putNull("timestamp");
+                    }
+                    values.put("json", Json.toJson(message));
+                    database.insertOrThrow("messages", null, values);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    @Override
+    public List<Data.Message> getMessageHistory(String author, Date from, Date to, int limit) throws Utils.ApplicationError {
+        // As in MessageStore: timestamps in [from, to), newest first, up to limit
+        StringBuilder sql = new StringBuilder("SELECT json FROM messages WHERE author = ? AND timestamp IS NOT NULL");
+        List<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(author);
+        if (from != null) {
+            sql.append(" AND timestamp >= ?");
+            selectionArgs.add(Long.toString(from.getTime()));
+        }
+        if (to != null) {
+            sql.append(" AND timestamp < ?");
+            selectionArgs.add(Long.toString(to.getTime()));
+        }
+        sql.append(" ORDER BY timestamp DESC LIMIT ");
+        sql.append(limit);
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (String json : queryJson(sql.toString(), selectionArgs.toArray(new String[selectionArgs.size()]))) {
+            messages.add(Json.fromJson(json, Data.Message.class));
+        }
+        return messages;
+    }
+
+    @Override
+    public void removeMessageHistory(String author) throws Utils.ApplicationError {
+        try {
+            getDatabase().delete("messages", "author = ?", new String[] {author});
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private SQLiteDatabase getDatabase() throws Utils.ApplicationError {
+        SQLiteDatabase database = mDatabase;
+        if (database == null) {
+            throw new Utils.ApplicationError(LOG_TAG, "database not open");
+        }
+        return database;
+    }
+
+    private void replace(String table, ContentValues values) throws Utils.ApplicationError {
+        try {
+            getDatabase().replaceOrThrow(table, null, values);
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private List<String> queryJson(String sql, String[] selectionArgs) throws Utils.ApplicationError {
+        // Returns the first column of each row
+        List<String> rows = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = getDatabase().rawQuery(sql, selectionArgs);
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(0));
+            }
+        } catch (SQLException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+}
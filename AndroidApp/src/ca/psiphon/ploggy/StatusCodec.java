@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wire encodings for status push and pull.
+ *
+ * Statuses are sent either as JSON, which every peer accepts, or in a compact binary
+ * encoding, which peers opt in to: a pull request lists the binary type in its Accept
+ * header, and the response Content-Type says which encoding was used. A peer that answers
+ * a pull in binary also accepts binary pushes. Compression (gzip content encoding) is
+ * negotiated the same way, with the Accept-Encoding and Content-Encoding headers.
+ *
+ * Binary encoding, after a format version byte:
+ * - integers are varints (7 bits per byte, low bits first); signed values are zigzag encoded
+ * - timestamps are epoch milliseconds; latitude and longitude are 8-byte IEEE doubles
+ * - strings are UTF-8, prefixed with their length
+ * - nullable values (strings, timestamps, lists, location) are prefixed or offset by 1, with 0 for null
+ */
+public class StatusCodec {
+
+    private static final String LOG_TAG = "Status Codec";
+
+    private static final int BINARY_FORMAT_VERSION = 1;
+
+    // Sanity limits for decoding peer data
+    private static final int MAX_STRING_LENGTH = 65536;
+    private static final int MAX_LIST_SIZE = 65536;
+
+    public static boolean isBinaryMimeType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        int parametersIndex = mimeType.indexOf(';');
+        if (parametersIndex != -1) {
+            mimeType = mimeType.substring(0, parametersIndex);
+        }
+        return mimeType.trim().equalsIgnoreCase(Protocol.STATUS_BINARY_MIME_TYPE);
+    }
+
+    public static String negotiateMimeType(String acceptHeader) {
+        // Binary when the peer accepts it, otherwise JSON
+        if (acceptHeader != null) {
+            for (String mimeType : acceptHeader.split(",")) {
+                if (isBinaryMimeType(mimeType)) {
+                    return Protocol.STATUS_BINARY_MIME_TYPE;
+                }
+            }
+        }
+        return Protocol.STATUS_JSON_MIME_TYPE;
+    }
+
+    public static boolean isCompressedContentEncoding(String contentEncoding) {
+        return contentEncoding != null &&
+                contentEncoding.trim().equalsIgnoreCase(Protocol.STATUS_COMPRESSED_CONTENT_ENCODING);
+    }
+
+    public static boolean acceptsCompressedContentEncoding(String acceptEncodingHeader) {
+        if (acceptEncodingHeader != null) {
+            for (String contentEncoding : acceptEncodingHeader.split(",")) {
+                int parametersIndex = contentEncoding.indexOf(';');
+                if (parametersIndex != -1) {
+                    contentEncoding = contentEncoding.substring(0, parametersIndex);
+                }
+                if (isCompressedContentEncoding(contentEncoding)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static byte[] encode(Data.Status status, String mimeType) throws Utils.ApplicationError {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        encode(status, mimeType, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    public static byte[] compress(byte[] encodedStatus) throws Utils.ApplicationError {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            GZIPOutputStream compressedStream = new GZIPOutputStream(outputStream);
+            compressedStream.write(encodedStatus);
+            compressedStream.close();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static void encode(Data.Status status, String mimeType, OutputStream outputStream) throws Utils.ApplicationError {
+        if (isBinaryMimeType(mimeType)) {
+            encodeBinary(status, outputStream);
+        } else {
+            // Peers which only accept JSON may predate millisecond timestamps
+            Json.toJsonWithLegacyDates(status, outputStream);
+        }
+    }
+
+    public static Data.Status decode(String mimeType, InputStream inputStream) throws Utils.ApplicationError {
+        if (isBinaryMimeType(mimeType)) {
+            return decodeBinary(inputStream);
+        }
+        return Json.fromJson(inputStream, Data.Status.class);
+    }
+
+    public static void encodeBinary(Data.Status status, OutputStream outputStream) throws Utils.ApplicationError {
+        try {
+            outputStream.write(BINARY_FORMAT_VERSION);
+            writeNullableSize(outputStream, status.mMessages);
+            if (status.mMessages != null) {
+                for (Data.Message message : status.mMessages) {
+                    writeTimestamp(outputStream, message.mTimestamp);
+                    writeString(outputStream, message.mContent);
+                    writeNullableSize(outputStream, message.mAttachments);
+                    if (message.mAttachments != null) {
+                        for (Data.Resource resource : message.mAttachments) {
+                            writeString(outputStream, resource.mId);
+                            writeString(outputStream, resource.mMimeType);
+                            writeVarint(outputStream, zigzagEncode(resource.mSize));
+                        }
+                    }
+                }
+            }
+            Data.Location location = status.mLocation;
+            outputStream.write(location != null ? 1 : 0);
+            if (location != null) {
+                writeTimestamp(outputStream, location.mTimestamp);
+                writeDouble(outputStream, location.mLatitude);
+                writeDouble(outputStream, location.mLongitude);
+                writeVarint(outputStream, zigzagEncode(location.mPrecision));
+                writeString(outputStream, location.mStreetAddress);
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static Data.Status decodeBinary(InputStream inputStream) throws Utils.ApplicationError {
+        // Read a byte at a time, so buffered; the caller's stream must end with the status
+        inputStream = new BufferedInputStream(inputStream);
+        try {
+            int version = readByte(inputStream);
+            if (version != BINARY_FORMAT_VERSION) {
+                throw new Utils.ApplicationError(LOG_TAG, "unsupported status format version: " + Integer.toString(version));
+            }
+            List<Data.Message> messages = null;
+            int messageCount = readNullableSize(inputStream);
+            if (messageCount != -1) {
+                messages = new ArrayList<Data.Message>();
+                for (int i = 0; i < messageCount; i++) {
+                    Date timestamp = readTimestamp(inputStream);
+                    String content = readString(inputStream);
+                    List<Data.Resource> attachments = null;
+                    int attachmentCount = readNullableSize(inputStream);
+                    if (attachmentCount != -1) {
+                        attachments = new ArrayList<Data.Resource>();
+                        for (int j = 0; j < attachmentCount; j++) {
+                            String id = readString(inputStream);
+                            String mimeType = readString(inputStream);
+                            long size = zigzagDecode(readVarint(inputStream));
+                            attachments.add(new Data.Resource(id, mimeType, size));
+                        }
+                    }
+                    messages.add(new Data.Message(timestamp, content, attachments));
+                }
+            }
+            Data.Location location = null;
+            if (readByte(inputStream) != 0) {
+                Date timestamp = readTimestamp(inputStream);
+                double latitude = readDouble(inputStream);
+                double longitude = readDouble(inputStream);
+                int precision = (int)zigzagDecode(readVarint(inputStream));
+                String streetAddress = readString(inputStream);
+                location = new Data.Location(timestamp, latitude, longitude, precision, streetAddress);
+            }
+            return new Data.Status(messages, location);
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private static void writeVarint(OutputStream outputStream, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            outputStream.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        outputStream.write((int)value);
+    }
+
+    private static long readVarint(InputStream inputStream) throws IOException, Utils.ApplicationError {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(inputStream);
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new Utils.ApplicationError(LOG_TAG, "invalid varint");
+    }
+
+    private static long zigzagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigzagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeTimestamp(OutputStream outputStream, Date timestamp) throws IOException {
+        writeVarint(outputStream, timestamp != null ? zigzagEncode(timestamp.getTime()) + 1 : 0);
+    }
+
+    private static Date readTimestamp(InputStream inputStream) throws IOException, Utils.ApplicationError {
+        long value = readVarint(inputStream);
+        return value != 0 ? new Date(zigzagDecode(value - 1)) : null;
+    }
+
+    private static void writeDouble(OutputStream outputStream, double value) throws IOException {
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            outputStream.write((int)(bits >>> shift));
+        }
+    }
+
+    private static double readDouble(InputStream inputStream) throws IOException, Utils.ApplicationError {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | readByte(inputStream);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static void writeString(OutputStream outputStream, String value) throws IOException {
+        if (value == null) {
+            writeVarint(outputStream, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(outputStream, bytes.length + 1);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(InputStream inputStream) throws IOException, Utils.ApplicationError {
+        long length = readVarint(inputStream);
+        if (length == 0) {
+            return null;
+        }
+        length -= 1;
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new Utils.ApplicationError(LOG_TAG, "string too long: " + Long.toString(length));
+        }
+        byte[] bytes = new byte[(int)length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int readLength = inputStream.read(bytes, offset, bytes.length - offset);
+            if (readLength == -1) {
+                throw new EOFException();
+            }
+            offset += readLength;
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private static void writeNullableSize(OutputStream outputStream, List<?> list) throws IOException {
+        writeVarint(outputStream, list != null ? list.size() + 1 : 0);
+    }
+
+    private static int readNullableSize(InputStream inputStream) throws IOException, Utils.ApplicationError {
+        // Returns -1 for null
+        long size = readVarint(inputStream) - 1;
+        if (size < -1 || size > MAX_LIST_SIZE) {
+            throw new Utils.ApplicationError(LOG_TAG, "list too long: " + Long.toString(size));
+        }
+        return (int)size;
+    }
+
+    private static int readByte(InputStream inputStream) throws IOException {
+        int b = inputStream.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * Prioritized, bounded worker pool for Engine tasks.
+ *
+ * Tasks are submitted with a TaskClass. When a worker is free, it runs the oldest queued
+ * task of the highest priority class that is under its concurrency limit; so, for example,
+ * a queued push runs before a queued download, and downloads can't occupy every worker.
+ * Each class also has a maximum queue depth:
+ * - submit() rejects (returns null) when the class queue is full; friend tasks are
+ *   rescheduled anyway, so dropping them is the backpressure
+ * - submitAndWait() blocks until there's room; used for peer requests, so a burst of
+ *   connections backs up in the accept loop rather than being dropped
+ *
+ * Worker threads are started on demand, up to a pool size based on the device core count,
+ * and exit after idling. Tasks are mostly blocking Tor network I/O, so the pool is a
+ * multiple of the core count.
+ *
+ * Per-class metrics are available with getMetrics().
+ */
+public class TaskExecutor extends AbstractExecutorService {
+
+    private static final String LOG_TAG = "Task Executor";
+
+    // In priority order, highest first
+    public enum TaskClass {PEER_REQUEST, PUSH, PULL, GEOCODE, DOWNLOAD, BACKGROUND};
+
+    private static final int THREADS_PER_CORE = 4;
+    private static final int MIN_POOL_SIZE = 8;
+    private static final int MAX_POOL_SIZE = 32;
+    private static final int IDLE_WORKER_TIMEOUT_IN_MILLISECONDS = 30*1000;
+
+    public static class Metrics {
+        public final TaskClass mTaskClass;
+        public final int mConcurrencyLimit;
+        public final int mMaxQueueDepth;
+        public final int mRunning;
+        public final int mQueued;
+        public final int mPeakQueued;
+        public final long mSubmitted;
+        public final long mRejected;
+        public final long mCompleted;
+        public final long mTotalQueueWaitInMilliseconds;
+
+        public Metrics(
+                TaskClass taskClass,
+                int concurrencyLimit,
+                int maxQueueDepth,
+                int running,
+                int queued,
+                int peakQueued,
+                long submitted,
+                long rejected,
+                long completed,
+                long totalQueueWaitInMilliseconds) {
+            mTaskClass = taskClass;
+            mConcurrencyLimit = concurrencyLimit;
+            mMaxQueueDepth = maxQueueDepth;
+            mRunning = running;
+            mQueued = queued;
+            mPeakQueued = peakQueued;
+            mSubmitted = submitted;
+            mRejected = rejected;
+            mCompleted = completed;
+            mTotalQueueWaitInMilliseconds = totalQueueWaitInMilliseconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: running %d/%d, queued %d/%d (peak %d), submitted %d, rejected %d, completed %d, average wait %d ms",
+                    mTaskClass.name(),
+                    mRunning,
+                    mConcurrencyLimit,
+                    mQueued,
+                    mMaxQueueDepth,
+                    mPeakQueued,
+                    mSubmitted,
+                    mRejected,
+                    mCompleted,
+                    mCompleted > 0 ? mTotalQueueWaitInMilliseconds/mCompleted : 0);
+        }
+    }
+
+    private static class ClassState {
+        final int mConcurrencyLimit;
+        final int mMaxQueueDepth;
+        final ArrayDeque<Task> mQueue;
+        int mRunning;
+        int mPeakQueued;
+        long mSubmitted;
+        long mRejected;
+        long mCompleted;
+        long mTotalQueueWaitInMilliseconds;
+
+        ClassState(int concurrencyLimit, int maxQueueDepth) {
+            mConcurrencyLimit = concurrencyLimit;
+            mMaxQueueDepth = maxQueueDepth;
+            mQueue = new ArrayDeque<Task>();
+        }
+    }
+
+    private class Task extends FutureTask<Void> {
+        final TaskClass mTaskClass;
+        long mQueuedTime;
+
+        Task(TaskClass taskClass, Runnable runnable) {
+            super(runnable, null);
+            mTaskClass = taskClass;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                // Free the queue slot now, rather than when a worker reaches the task
+                dequeueCancelledTask(this);
+            }
+            return cancelled;
+        }
+    }
+
+    private final int mPoolSize;
+    private final EnumMap<TaskClass, ClassState> mClassStates;
+    private final List<Thread> mWorkers;
+    // Workers not running a task, including workers just started. A worker only stops
+    // being idle once it takes a task, so this also counts workers already notified of a
+    // newly queued task.
+    private int mIdleWorkers;
+    private boolean mShutdown;
+    private boolean mPaused;
+
+    public TaskExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public TaskExecutor(int coreCount) {
+        mPoolSize = Math.max(MIN_POOL_SIZE, Math.min(MAX_POOL_SIZE, coreCount*THREADS_PER_CORE));
+        mClassStates = new EnumMap<TaskClass, ClassState>(TaskClass.class);
+        // The concurrency limits of the local task classes add up to less than the pool size,
+        // so some workers are always left for peer requests
+        mClassStates.put(TaskClass.PEER_REQUEST, new ClassState(mPoolSize/2, 64));
+        mClassStates.put(TaskClass.PUSH, new ClassState(mPoolSize/4, 256));
+        mClassStates.put(TaskClass.PULL, new ClassState(mPoolSize/4, 256));
+        mClassStates.put(TaskClass.GEOCODE, new ClassState(1, 4));
+        mClassStates.put(TaskClass.DOWNLOAD, new ClassState(Math.max(1, mPoolSize/8), 256));
+        mClassStates.put(TaskClass.BACKGROUND, new ClassState(Math.max(1, mPoolSize/8), 64));
+        mWorkers = new ArrayList<Thread>();
+        mIdleWorkers = 0;
+        mShutdown = false;
+    }
+
+    public int getPoolSize() {
+        return mPoolSize;
+    }
+
+    // Returns null when the task is rejected: queue full or executor shut down
+    public synchronized Future<?> submit(TaskClass taskClass, Runnable runnable) {
+        ClassState classState = mClassStates.get(taskClass);
+        classState.mSubmitted++;
+        if (mShutdown || classState.mQueue.size() >= classState.mMaxQueueDepth) {
+            classState.mRejected++;
+            return null;
+        }
+        return enqueue(taskClass, runnable);
+    }
+
+    // Returns null when the task is rejected: executor shut down or interrupted while waiting
+    public synchronized Future<?> submitAndWait(TaskClass taskClass, Runnable runnable) {
+        ClassState classState = mClassStates.get(taskClass);
+        classState.mSubmitted++;
+        try {
+            while (!mShutdown && classState.mQueue.size() >= classState.mMaxQueueDepth) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mShutdown || classState.mQueue.size() >= classState.mMaxQueueDepth) {
+            classState.mRejected++;
+            return null;
+        }
+        return enqueue(taskClass, runnable);
+    }
+
+    public synchronized List<Metrics> getMetrics() {
+        List<Metrics> metrics = new ArrayList<Metrics>();
+        for (TaskClass taskClass : TaskClass.values()) {
+            ClassState classState = mClassStates.get(taskClass);
+            metrics.add(new Metrics(
+                    taskClass,
+                    classState.mConcurrencyLimit,
+                    classState.mMaxQueueDepth,
+                    classState.mRunning,
+                    classState.mQueue.size(),
+                    classState.mPeakQueued,
+                    classState.mSubmitted,
+                    classState.mRejected,
+                    classState.mCompleted,
+                    classState.mTotalQueueWaitInMilliseconds));
+        }
+        return metrics;
+    }
+
+    // Test hooks: while paused, tasks are queued and workers started as usual, but no
+    // worker takes a task until resumed
+    synchronized void pause() {
+        mPaused = true;
+    }
+
+    synchronized void resume() {
+        mPaused = false;
+        notifyAll();
+    }
+
+    public void logMetrics() {
+        for (Metrics metrics : getMetrics()) {
+            Log.addEntry(LOG_TAG, metrics.toString());
+        }
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (submit(TaskClass.BACKGROUND, runnable) == null) {
+            throw new RejectedExecutionException();
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        // Queued tasks still run; workers exit once the queues are empty
+        mShutdown = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        mShutdown = true;
+        List<Runnable> pendingTasks = new ArrayList<Runnable>();
+        for (ClassState classState : mClassStates.values()) {
+            pendingTasks.addAll(classState.mQueue);
+            classState.mQueue.clear();
+        }
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        notifyAll();
+        return pendingTasks;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return mShutdown && mWorkers.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + unit.toMillis(timeout);
+        while (!isTerminated()) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private Task enqueue(TaskClass taskClass, Runnable runnable) {
+        ClassState classState = mClassStates.get(taskClass);
+        Task task = new Task(taskClass, runnable);
+        task.mQueuedTime = SystemClock.elapsedRealtime();
+        classState.mQueue.addLast(task);
+        classState.mPeakQueued = Math.max(classState.mPeakQueued, classState.mQueue.size());
+        // Start a worker for each runnable task the idle workers can't take. A burst of
+        // submits (e.g., pulls to all due friends) is queued before any idle worker wakes up.
+        while (getRunnableTaskCount() > mIdleWorkers && mWorkers.size() < mPoolSize) {
+            startWorker();
+        }
+        notifyAll();
+        return task;
+    }
+
+    private synchronized void dequeueCancelledTask(Task task) {
+        if (mClassStates.get(task.mTaskClass).mQueue.remove(task)) {
+            notifyAll();
+        }
+    }
+
+    private Task takeNextTask() {
+        if (mPaused && !mShutdown) {
+            return null;
+        }
+        for (TaskClass taskClass : TaskClass.values()) {
+            ClassState classState = mClassStates.get(taskClass);
+            if (classState.mRunning < classState.mConcurrencyLimit && !classState.mQueue.isEmpty()) {
+                Task task = classState.mQueue.removeFirst();
+                classState.mRunning++;
+                classState.mTotalQueueWaitInMilliseconds += SystemClock.elapsedRealtime() - task.mQueuedTime;
+                // Wakes submitAndWait callers blocked on a full queue
+                notifyAll();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private int getRunnableTaskCount() {
+        // Queued tasks which aren't held back by their class concurrency limit
+        int count = 0;
+        for (ClassState classState : mClassStates.values()) {
+            count += Math.max(0, Math.min(
+                    classState.mQueue.size(),
+                    classState.mConcurrencyLimit - classState.mRunning));
+        }
+        return count;
+    }
+
+    private boolean hasQueuedTasks() {
+        for (ClassState classState : mClassStates.values()) {
+            if (!classState.mQueue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void completedTask(Task task) {
+        ClassState classState = mClassStates.get(task.mTaskClass);
+        classState.mRunning--;
+        classState.mCompleted++;
+        mIdleWorkers++;
+        // A class under its limit again may have queued tasks
+        notifyAll();
+    }
+
+    private synchronized Task waitForNextTask(Thread worker) {
+        // Returns null when the worker should exit
+        long idleDeadline = SystemClock.elapsedRealtime() + IDLE_WORKER_TIMEOUT_IN_MILLISECONDS;
+        while (true) {
+            Task task = takeNextTask();
+            if (task != null) {
+                mIdleWorkers--;
+                return task;
+            }
+            if (mShutdown && !hasQueuedTasks()) {
+                break;
+            }
+            long remaining = idleDeadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0 && !hasQueuedTasks()) {
+                break;
+            }
+            try {
+                // Queued tasks whose class is at its limit wait for a completion notify
+                wait(remaining > 0 ? remaining : IDLE_WORKER_TIMEOUT_IN_MILLISECONDS);
+            } catch (InterruptedException e) {
+                if (mShutdown) {
+                    break;
+                }
+            }
+        }
+        mIdleWorkers--;
+        mWorkers.remove(worker);
+        notifyAll();
+        return null;
+    }
+
+    private void startWorker() {
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Thread self = Thread.currentThread();
+                while (true) {
+                    Task task = waitForNextTask(self);
+                    if (task == null) {
+                        return;
+                    }
+                    try {
+                        // FutureTask captures exceptions thrown by the task
+                        task.run();
+                    } finally {
+                        // Clear any interrupt from cancelling this task, so it doesn't
+                        // carry over to the next task
+                        Thread.interrupted();
+                        completedTask(task);
+                    }
+                }
+            }
+        });
+        worker.setName(LOG_TAG);
+        worker.setDaemon(true);
+        mWorkers.add(worker);
+        mIdleWorkers++;
+        worker.start();
+    }
+}
@@ -19,6 +19,7 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,10 +28,18 @@ import java.util.List;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import android.os.CancellationSignal;
 import android.util.Pair;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 
 /**
  * Component tests.
@@ -42,6 +51,13 @@ import android.util.Pair;
  * - HiddenService
  * - WebClient
  * - WebServer
+ *
+ * Also covered (locally):
+ * - TaskExecutor concurrency limits
+ *
+ * Benchmarks (using the current local data):
+ * - Data read latency under concurrent writes
+ * - Json serialization and parse throughput, reflective vs. JsonAdapters
  */
 public class Tests {
 
@@ -55,6 +71,9 @@ public class Tests {
                     @Override
                     public void run() {
                         Tests.runComponentTests();
+                        Tests.runTaskExecutorTests();
+                        Tests.runDataBenchmarks();
+                        Tests.runJsonBenchmarks();
                     }
                 },
                 2000);
@@ -96,9 +115,10 @@ public class Tests {
         }
 
         @Override
-        public Data.Status handlePullStatusRequest(String friendId) throws Utils.ApplicationError {
+        public byte[] handlePullStatusRequest(String friendCertificate, String mimeType, boolean compressed) throws Utils.ApplicationError {
             Log.addEntry(LOG_TAG, "handle pull status request...");
-            return getMockStatus();
+            byte[] encodedStatus = StatusCodec.encode(getMockStatus(), mimeType);
+            return compressed ? StatusCodec.compress(encodedStatus) : encodedStatus;
         }
 
         @Override
@@ -188,7 +208,8 @@ public class Tests {
             // Test direct web request (not through Tor)
             // Repeat multiple times to exercise keep-alive connection
             String response;
-            String expectedResponse = Json.toJson(selfRequestHandler.getMockStatus());
+            // Requests without an Accept header get JSON with legacy dates, as for older peers
+            String expectedResponse = Json.toJsonWithLegacyDates(selfRequestHandler.getMockStatus());
             for (int i = 0; i < 4; i++) {
                 Log.addEntry(LOG_TAG, "Direct GET request from valid friend...");
                 response = WebClient.makeGetRequest(
@@ -202,15 +223,65 @@ public class Tests {
                 if (!response.equals(expectedResponse)) {
                     throw new Utils.ApplicationError(LOG_TAG, "unexpected status response value");
                 }
-                Log.addEntry(LOG_TAG, "Direct POST request from valid friend...");
-                WebClient.makeJsonPostRequest(
+                Log.addEntry(LOG_TAG, "Direct compressed binary status GET request from valid friend...");
+                WebClient.StatusResponse statusResponse = WebClient.makeStatusGetRequest(
+                        friendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PULL_STATUS_REQUEST_PATH,
+                        null);
+                if (!StatusCodec.isBinaryMimeType(statusResponse.mMimeType) || !statusResponse.mCompressed) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected status response encoding");
+                }
+                Protocol.validateStatus(statusResponse.mStatus);
+                if (!Json.toJsonWithLegacyDates(statusResponse.mStatus).equals(expectedResponse)) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected binary status response value");
+                }
+                Log.addEntry(LOG_TAG, "Direct compressed binary status POST request from valid friend...");
+                WebClient.makeStatusPostRequest(
                         friendX509KeyMaterial,
                         self.mPublicIdentity.mX509Certificate,
                         WebClient.UNTUNNELED_REQUEST,
                         "127.0.0.1",
                         selfWebServer.getListeningPort(),
                         Protocol.PUSH_STATUS_REQUEST_PATH,
-                        expectedResponse);
+                        StatusCodec.compress(StatusCodec.encode(selfRequestHandler.getMockStatus(), Protocol.STATUS_BINARY_MIME_TYPE)),
+                        Protocol.STATUS_BINARY_MIME_TYPE,
+                        true,
+                        null);
+                Log.addEntry(LOG_TAG, "Direct cancelled status GET request from valid friend...");
+                CancellationSignal cancellationSignal = new CancellationSignal();
+                cancellationSignal.cancel();
+                boolean cancelled = false;
+                try {
+                    WebClient.makeStatusGetRequest(
+                            friendX509KeyMaterial,
+                            self.mPublicIdentity.mX509Certificate,
+                            WebClient.UNTUNNELED_REQUEST,
+                            "127.0.0.1",
+                            selfWebServer.getListeningPort(),
+                            Protocol.PULL_STATUS_REQUEST_PATH,
+                            cancellationSignal);
+                } catch (Utils.ApplicationError e) {
+                    cancelled = true;
+                }
+                if (!cancelled) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected success of cancelled request");
+                }
+                Log.addEntry(LOG_TAG, "Direct JSON status POST request from valid friend...");
+                WebClient.makeStatusPostRequest(
+                        friendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PUSH_STATUS_REQUEST_PATH,
+                        StatusCodec.encode(selfRequestHandler.getMockStatus(), Protocol.STATUS_JSON_MIME_TYPE),
+                        Protocol.STATUS_JSON_MIME_TYPE,
+                        false,
+                        null);
             }
 
             Log.addEntry(LOG_TAG, "Run self Tor...");
@@ -348,4 +419,313 @@ public class Tests {
             }
         }
     }
+
+    private static final int TASK_EXECUTOR_TEST_TIMEOUT_IN_MILLISECONDS = 5*1000;
+
+    public static void runTaskExecutorTests() {
+        // A burst of same class tasks, queued before any worker takes one, must run
+        // concurrently up to the class limit, and no further.
+        TaskExecutor taskExecutor = null;
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Log.addEntry(LOG_TAG, "Concurrent task executor tasks...");
+            taskExecutor = new TaskExecutor();
+            int concurrencyLimit = taskExecutor.getMetrics().get(TaskExecutor.TaskClass.PULL.ordinal()).mConcurrencyLimit;
+            final CountDownLatch started = new CountDownLatch(concurrencyLimit);
+            final AtomicInteger running = new AtomicInteger(0);
+            final AtomicInteger maxRunning = new AtomicInteger(0);
+            Runnable blockingTask = new Runnable() {
+                @Override
+                public void run() {
+                    int count = running.incrementAndGet();
+                    int max = maxRunning.get();
+                    while (count > max && !maxRunning.compareAndSet(max, count)) {
+                        max = maxRunning.get();
+                    }
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                }
+            };
+            // Queue the whole burst before any worker can take a task, as when the Engine
+            // submits pulls to all due friends
+            taskExecutor.pause();
+            for (int i = 0; i < concurrencyLimit + 2; i++) {
+                if (taskExecutor.submit(TaskExecutor.TaskClass.PULL, blockingTask) == null) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected task rejection");
+                }
+            }
+            taskExecutor.resume();
+            if (!started.await(TASK_EXECUTOR_TEST_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                throw new Utils.ApplicationError(LOG_TAG, String.format(
+                        "tasks not concurrent: %d of %d running", running.get(), concurrencyLimit));
+            }
+            if (maxRunning.get() > concurrencyLimit) {
+                throw new Utils.ApplicationError(LOG_TAG, "task class concurrency limit exceeded");
+            }
+            Log.addEntry(LOG_TAG, "Task executor test run success");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.addEntry(LOG_TAG, "Task executor test failed");
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "Task executor test failed");
+        } finally {
+            release.countDown();
+            if (taskExecutor != null) {
+                Utils.shutdownExecutorService(taskExecutor);
+            }
+        }
+    }
+
+    private static final int DATA_BENCHMARK_READER_COUNT = 4;
+    private static final int DATA_BENCHMARK_WRITER_COUNT = 4;
+    private static final int DATA_BENCHMARK_FRIEND_COUNT = 50;
+    private static final int DATA_BENCHMARK_MESSAGE_COUNT = 10;
+    private static final int DATA_BENCHMARK_DURATION_IN_MILLISECONDS = 5*1000;
+    private static final int DATA_BENCHMARK_MESSAGE_PAGE_SIZE = 50;
+    private static final String DATA_BENCHMARK_DIRECTORY = "dataBenchmark";
+
+    public static void runDataBenchmarks() {
+        // Measures Data read latency -- the reads done when serving a pull and refreshing
+        // the UI -- while concurrent pushes write friend statuses. Uses a separate Data
+        // instance over a temporary store with generated friends, so the user's data isn't
+        // touched and no events are posted. The same workload runs twice: first with each
+        // read synchronized on the Data monitor, as under the old global lock, where every
+        // Data method was synchronized; then with the current snapshot reads.
+        File directory = new File(Utils.getApplicationContext().getCacheDir(), DATA_BENCHMARK_DIRECTORY);
+        DataStore store = new JsonFileDataStore(directory);
+        try {
+            Log.addEntry(LOG_TAG, "Data read latency under concurrent pushes...");
+            store.open();
+            store.reset();
+            // The message timeline includes self's messages, so the store needs a self
+            store.putSelf(new Data.Self(
+                    makeDataBenchmarkPublicIdentity("Me"),
+                    new Identity.PrivateIdentity(
+                            Utils.encodeBase64(Utils.getRandomBytes(600)),
+                            Utils.encodeBase64(Utils.getRandomBytes(600))),
+                    new Date()));
+            List<Data.Friend> friends = new ArrayList<Data.Friend>();
+            for (int i = 0; i < DATA_BENCHMARK_FRIEND_COUNT; i++) {
+                friends.add(new Data.Friend(
+                        Utils.formatFingerprint(Utils.getRandomBytes(20)),
+                        makeDataBenchmarkPublicIdentity("Friend " + Integer.toString(i)),
+                        new Date(),
+                        new Date(),
+                        null));
+            }
+            store.putFriends(friends);
+            for (Data.Friend friend : friends) {
+                List<Data.Message> messages = new ArrayList<Data.Message>();
+                for (int i = 0; i < DATA_BENCHMARK_MESSAGE_COUNT; i++) {
+                    messages.add(new Data.Message(new Date(), "Benchmark message " + Integer.toString(i), null));
+                }
+                store.putFriendStatus(friend.mId, new Data.Status(messages, makeDataBenchmarkLocation()));
+            }
+            Data data = new Data(store);
+            Log.addEntry(LOG_TAG, "Data benchmark, global lock: " + runDataBenchmark(data, friends, true));
+            Log.addEntry(LOG_TAG, "Data benchmark, snapshots: " + runDataBenchmark(data, friends, false));
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "Data benchmark failed");
+        } finally {
+            try {
+                store.reset();
+            } catch (Utils.ApplicationError e) {
+                Log.addEntry(LOG_TAG, "failed to delete Data benchmark store");
+            }
+            store.close();
+            directory.delete();
+        }
+    }
+
+    private static Identity.PublicIdentity makeDataBenchmarkPublicIdentity(String nickname) {
+        return new Identity.PublicIdentity(
+                nickname,
+                Utils.encodeBase64(Utils.getRandomBytes(600)),
+                Utils.formatFingerprint(Utils.getRandomBytes(10)) + ".onion",
+                Utils.encodeBase64(Utils.getRandomBytes(16)),
+                Utils.encodeBase64(Utils.getRandomBytes(64)));
+    }
+
+    private static Data.Location makeDataBenchmarkLocation() {
+        return new Data.Location(new Date(), 43.6426, -79.3871, 10, "301 Front St W, Toronto, ON M5V 2T6");
+    }
+
+    private static String runDataBenchmark(
+            final Data data, final List<Data.Friend> friends, final boolean globalLock) {
+        // Each push re-applies a friend's messages with a new location, so every push is
+        // written and none is discarded as older
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong readCount = new AtomicLong(0);
+        final AtomicLong totalReadNanoseconds = new AtomicLong(0);
+        final AtomicLong maxReadNanoseconds = new AtomicLong(0);
+        final AtomicLong writeCount = new AtomicLong(0);
+        ExecutorService threadPool = Executors.newFixedThreadPool(DATA_BENCHMARK_READER_COUNT + DATA_BENCHMARK_WRITER_COUNT);
+        try {
+            for (int i = 0; i < DATA_BENCHMARK_WRITER_COUNT; i++) {
+                threadPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random();
+                        while (!stop.get()) {
+                            Data.Friend friend = friends.get(random.nextInt(friends.size()));
+                            try {
+                                data.updateFriendStatus(
+                                        friend.mId,
+                                        new Data.Status(data.getFriendStatus(friend.mId).mMessages, makeDataBenchmarkLocation()));
+                                writeCount.incrementAndGet();
+                            } catch (Utils.ApplicationError e) {
+                                Log.addEntry(LOG_TAG, "Data benchmark write failed");
+                            }
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < DATA_BENCHMARK_READER_COUNT; i++) {
+                threadPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random();
+                        while (!stop.get()) {
+                            Data.Friend friend = friends.get(random.nextInt(friends.size()));
+                            long start = System.nanoTime();
+                            try {
+                                if (globalLock) {
+                                    synchronized (data) {
+                                        read(friend);
+                                    }
+                                } else {
+                                    read(friend);
+                                }
+                            } catch (Utils.ApplicationError e) {
+                                Log.addEntry(LOG_TAG, "Data benchmark read failed");
+                            }
+                            long elapsed = System.nanoTime() - start;
+                            readCount.incrementAndGet();
+                            totalReadNanoseconds.addAndGet(elapsed);
+                            long max = maxReadNanoseconds.get();
+                            while (elapsed > max && !maxReadNanoseconds.compareAndSet(max, elapsed)) {
+                                max = maxReadNanoseconds.get();
+                            }
+                        }
+                    }
+
+                    private void read(Data.Friend friend) throws Utils.ApplicationError {
+                        data.getFriendByCertificate(friend.mPublicIdentity.mX509Certificate);
+                        data.getFriendStatus(friend.mId);
+                        data.getSelfStatus();
+                        data.getMessages(null, DATA_BENCHMARK_MESSAGE_PAGE_SIZE);
+                    }
+                });
+            }
+            try {
+                Thread.sleep(DATA_BENCHMARK_DURATION_IN_MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            stop.set(true);
+            threadPool.shutdown();
+            try {
+                threadPool.awaitTermination(DATA_BENCHMARK_DURATION_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long reads = Math.max(1, readCount.get());
+        return String.format(
+                "%d pushes, %d reads, mean read %d us, max read %d us",
+                writeCount.get(),
+                readCount.get(),
+                TimeUnit.NANOSECONDS.toMicros(totalReadNanoseconds.get() / reads),
+                TimeUnit.NANOSECONDS.toMicros(maxReadNanoseconds.get()));
+    }
+
+    private static final int JSON_BENCHMARK_ITERATIONS = 200;
+    private static final int JSON_BENCHMARK_FRIEND_COUNT = 50;
+
+    public static void runJsonBenchmarks() {
+        // Compares GSON's reflective adapters with JsonAdapters for a full status -- the
+        // push/pull payload -- and for a friend list, as stored by Data. Uses generated data.
+        try {
+            Log.addEntry(LOG_TAG, "Json serialization and parse throughput...");
+            Gson reflectiveSerializer = Json.makeReflectiveGsonBuilder(false).create();
+
+            List<Data.Message> messages = new ArrayList<Data.Message>();
+            for (int i = 0; i < Protocol.MAX_MESSAGE_COUNT; i++) {
+                List<Data.Resource> attachments = new ArrayList<Data.Resource>();
+                attachments.add(new Data.Resource(Utils.formatFingerprint(Utils.getRandomBytes(20)), "image/jpeg", 100000 + i));
+                messages.add(new Data.Message(new Date(), "Benchmark message " + Integer.toString(i), attachments));
+            }
+            Data.Status status = new Data.Status(
+                    messages,
+                    new Data.Location(new Date(), 43.6426, -79.3871, 10, "301 Front St W, Toronto, ON M5V 2T6"));
+
+            List<Data.Friend> friends = new ArrayList<Data.Friend>();
+            for (int i = 0; i < JSON_BENCHMARK_FRIEND_COUNT; i++) {
+                Identity.PublicIdentity publicIdentity = new Identity.PublicIdentity(
+                        "Friend " + Integer.toString(i),
+                        Utils.encodeBase64(Utils.getRandomBytes(600)),
+                        "benchmark" + Integer.toString(i) + ".onion",
+                        Utils.encodeBase64(Utils.getRandomBytes(16)),
+                        Utils.encodeBase64(Utils.getRandomBytes(64)));
+                friends.add(new Data.Friend(
+                        Utils.formatFingerprint(Utils.getRandomBytes(20)), publicIdentity, new Date(), new Date(), null));
+            }
+
+            // The two must interoperate: each reads the other's output back to the same JSON
+            String statusJson = Json.toJson(status);
+            if (!Json.toJson(reflectiveSerializer.fromJson(statusJson, Data.Status.class)).equals(statusJson) ||
+                    !Json.toJson(Json.fromJson(reflectiveSerializer.toJson(status), Data.Status.class)).equals(statusJson)) {
+                throw new Utils.ApplicationError(LOG_TAG, "JsonAdapters status mismatch");
+            }
+            String friendsJson = Json.toJson(friends);
+            if (!Json.toJson(reflectiveSerializer.fromJson(friendsJson, Data.Friend[].class)).equals(
+                    Json.toJson(Json.fromJson(friendsJson, Data.Friend[].class)))) {
+                throw new Utils.ApplicationError(LOG_TAG, "JsonAdapters friends mismatch");
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < JSON_BENCHMARK_ITERATIONS; i++) {
+                reflectiveSerializer.toJson(status);
+                reflectiveSerializer.toJson(friends);
+            }
+            long reflectiveSerializeNanoseconds = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < JSON_BENCHMARK_ITERATIONS; i++) {
+                Json.toJson(status);
+                Json.toJson(friends);
+            }
+            long adapterSerializeNanoseconds = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < JSON_BENCHMARK_ITERATIONS; i++) {
+                reflectiveSerializer.fromJson(statusJson, Data.Status.class);
+                reflectiveSerializer.fromJson(friendsJson, Data.Friend[].class);
+            }
+            long reflectiveParseNanoseconds = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < JSON_BENCHMARK_ITERATIONS; i++) {
+                Json.fromJson(statusJson, Data.Status.class);
+                Json.fromJson(friendsJson, Data.Friend[].class);
+            }
+            long adapterParseNanoseconds = System.nanoTime() - start;
+
+            Log.addEntry(LOG_TAG, String.format(
+                    "Json benchmark: %d iterations of %d bytes; serialize %d ms reflective, %d ms adapters; parse %d ms reflective, %d ms adapters",
+                    JSON_BENCHMARK_ITERATIONS,
+                    statusJson.length() + friendsJson.length(),
+                    TimeUnit.NANOSECONDS.toMillis(reflectiveSerializeNanoseconds),
+                    TimeUnit.NANOSECONDS.toMillis(adapterSerializeNanoseconds),
+                    TimeUnit.NANOSECONDS.toMillis(reflectiveParseNanoseconds),
+                    TimeUnit.NANOSECONDS.toMillis(adapterParseNanoseconds)));
+        } catch (JsonSyntaxException e) {
+            Log.addEntry(LOG_TAG, "Json benchmark failed");
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "Json benchmark failed");
+        }
+    }
 }
@@ -44,6 +44,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
@@ -92,7 +93,7 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
 
     private final Mode mMode;
     private String mInstanceName;
-    private final List<HiddenServiceAuth> mHiddenServiceAuth;
+    private volatile List<HiddenServiceAuth> mHiddenServiceAuth;
     private HiddenService.KeyMaterial mKeyMaterial;
     private int mWebServerPort = -1;
     private final File mRootDirectory;
@@ -114,7 +115,7 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
     private int mControlPort = -1;
     private int mSocksProxyPort = -1;
     private Socket mControlSocket = null;
-    private TorControlConnection mControlConnection = null;
+    private volatile TorControlConnection mControlConnection = null;
     private CountDownLatch mCircuitEstablishedLatch = null;
     private static final int CONTROL_INITIALIZED_TIMEOUT_MILLISECONDS = 90000;
     private static final int HIDDEN_SERVICE_INITIALIZED_TIMEOUT_MILLISECONDS = 90000;
@@ -375,6 +376,34 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
         mCircuitEstablishedLatch = null;
     }
 
+    public void updateHiddenServiceAuth(List<HiddenServiceAuth> hiddenServiceAuth) throws Utils.ApplicationError {
+        // Applies the new set of friend hidden service auth cookies to the running Tor
+        // process, via the control interface, without restarting Tor. Fails when Tor isn't
+        // yet running, as a start in progress may have already written the old config.
+        mHiddenServiceAuth = hiddenServiceAuth;
+        TorControlConnection controlConnection = mControlConnection;
+        if (mMode != Mode.MODE_RUN_SERVICES || controlConnection == null) {
+            throw new Utils.ApplicationError(logTag(), "Tor not running");
+        }
+        try {
+            if (hiddenServiceAuth.size() == 0) {
+                controlConnection.resetConf(Arrays.asList("HidServAuth"));
+            } else {
+                // HidServAuth is a list option: one SETCONF with all values replaces all lines
+                List<String> hiddenServiceAuthConfig = new ArrayList<String>();
+                for (HiddenServiceAuth auth : hiddenServiceAuth) {
+                    hiddenServiceAuthConfig.add(
+                        String.format((Locale)null, "HidServAuth %s %s", auth.mHostname, auth.mAuthCookie));
+                }
+                controlConnection.setConf(hiddenServiceAuthConfig);
+            }
+            // Keep the config file consistent with the running configuration
+            writeRunServicesConfigFile();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(logTag(), e);
+        }
+    }
+
     public HiddenService.KeyMaterial getKeyMaterial() {
         return mKeyMaterial;
     }
@@ -24,15 +24,21 @@ import java.net.ServerSocket;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
 import java.util.List;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
 
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
 
@@ -49,11 +55,8 @@ public class TransportSecurity {
 
     private static final String LOG_TAG = "Transport Security";
 
-    public static ServerSocket makeServerSocket(
-            X509.KeyMaterial transportKeyMaterial,
-            List<String> friendCertificates) throws Utils.ApplicationError {
+    public static ServerSocket makeServerSocket(SSLContext sslContext) throws Utils.ApplicationError {
         try {
-            SSLContext sslContext = TransportSecurity.getSSLContext(transportKeyMaterial, friendCertificates);
             SSLServerSocket sslServerSocket = (SSLServerSocket)(sslContext.getServerSocketFactory().createServerSocket());
             sslServerSocket.setNeedClientAuth(true);
             sslServerSocket.setEnabledCipherSuites(TLS_REQUIRED_CIPHER_SUITES);
@@ -86,9 +89,81 @@ public class TransportSecurity {
         return new ClientSSLSocketFactory(sslContext);
     }
 
+    /**
+     * Trust manager which trusts exactly the current friend certificates.
+     *
+     * The set of friend certificates may be replaced at any time, which applies to all new
+     * handshakes on sockets from SSLContexts using this trust manager. Sessions established
+     * before the change aren't revoked by this; see invalidateSessions.
+     */
+    public static class FriendTrustManager implements X509TrustManager {
+
+        private volatile X509TrustManager mTrustManager;
+
+        public FriendTrustManager(List<String> friendCertificates) throws Utils.ApplicationError {
+            setFriendCertificates(friendCertificates);
+        }
+
+        public void setFriendCertificates(List<String> friendCertificates) throws Utils.ApplicationError {
+            // Builds the new trust manager completely before replacing the current one, so
+            // concurrent handshakes see either the old or the new set of friends
+            try {
+                KeyStore peerKeyStore = X509.makeKeyStore();
+                for (String friendCertificate : friendCertificates) {
+                    X509.loadKeyMaterial(peerKeyStore, friendCertificate, null);
+                }
+                TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
+                trustManagerFactory.init(peerKeyStore);
+                for (TrustManager trustManager : trustManagerFactory.getTrustManagers()) {
+                    if (trustManager instanceof X509TrustManager) {
+                        mTrustManager = (X509TrustManager)trustManager;
+                        return;
+                    }
+                }
+                throw new Utils.ApplicationError(LOG_TAG, "no X509 trust manager");
+            } catch (GeneralSecurityException e) {
+                throw new Utils.ApplicationError(LOG_TAG, e);
+            }
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            mTrustManager.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            mTrustManager.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return mTrustManager.getAcceptedIssuers();
+        }
+    }
+
+    public static void invalidateSessions(SSLContext sslContext) {
+        // Cached sessions may be resumed without consulting the trust manager, so after
+        // removing a friend, drop them; friends then make a full handshake
+        SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+        Enumeration<byte[]> sessionIds = sessionContext.getIds();
+        while (sessionIds.hasMoreElements()) {
+            SSLSession session = sessionContext.getSession(sessionIds.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
     public static SSLContext getSSLContext(
             X509.KeyMaterial x509KeyMaterial,
             List<String> friendCertificates) throws Utils.ApplicationError {
+        return getSSLContext(x509KeyMaterial, new FriendTrustManager(friendCertificates));
+    }
+
+    public static SSLContext getSSLContext(
+            X509.KeyMaterial x509KeyMaterial,
+            FriendTrustManager friendTrustManager) throws Utils.ApplicationError {
         try {
             KeyManager[] keyManagers = null;
             if (x509KeyMaterial != null) {
@@ -99,16 +174,8 @@ public class TransportSecurity {
                 keyManagers = keyManagerFactory.getKeyManagers();
             }
 
-            KeyStore peerKeyStore = X509.makeKeyStore();
-            for (String friendCertificate : friendCertificates) {
-                X509.loadKeyMaterial(peerKeyStore, friendCertificate, null);
-            }
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
-            trustManagerFactory.init(peerKeyStore);
-            TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
-
             SSLContext sslContext = SSLContext.getInstance(TLS_REQUIRED_PROTOCOL);
-            sslContext.init(keyManagers, trustManagers, new SecureRandom());
+            sslContext.init(keyManagers, new TrustManager[] {friendTrustManager}, new SecureRandom());
             return sslContext;
         } catch (IllegalArgumentException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
@@ -33,12 +33,16 @@ import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.SSLContext;
 
+import android.os.CancellationSignal;
 import android.util.Pair;
+import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
@@ -100,7 +104,9 @@ public class WebClient {
                 -1,    // requestBodyLength
                 null,  // requestBodyStream
                 null,  // rangeHeader
-                responseBodyStream);
+                null,  // requestHeaders
+                makeCopyResponseBodyHandler(responseBodyStream),
+                null); // cancellationSignal
         try {
             return new String(responseBodyStream.toByteArray(), "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -129,7 +135,9 @@ public class WebClient {
                 -1,    // requestBodyLength
                 null,  // requestBodyStream
                 null,  // rangeHeader
-                responseBodyStream);
+                null,  // requestHeaders
+                makeCopyResponseBodyHandler(responseBodyStream),
+                null); // cancellationSignal
         try {
             return new String(responseBodyStream.toByteArray(), "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -146,7 +154,8 @@ public class WebClient {
             String requestPath,
             List<Pair<String,String>> requestParameters,
             Pair<Long, Long> rangeHeader,
-            OutputStream responseBodyStream) throws Utils.ApplicationError {
+            OutputStream responseBodyStream,
+            CancellationSignal cancellationSignal) throws Utils.ApplicationError {
         makeRequest(
                 x509KeyMaterial,
                 peerCertificate,
@@ -159,22 +168,77 @@ public class WebClient {
                 -1,    // requestBodyLength
                 null,  // requestBodyStream
                 rangeHeader,
-                responseBodyStream);
+                null,  // requestHeaders
+                makeCopyResponseBodyHandler(responseBodyStream),
+                cancellationSignal);
     }
 
-    public static void makeJsonPostRequest(
+    public static class StatusResponse {
+        public final Data.Status mStatus;
+        // The encoding the peer chose; see StatusCodec
+        public final String mMimeType;
+        public final boolean mCompressed;
+
+        public StatusResponse(Data.Status status, String mimeType, boolean compressed) {
+            mStatus = status;
+            mMimeType = mimeType;
+            mCompressed = compressed;
+        }
+    }
+
+    public static StatusResponse makeStatusGetRequest(
             X509.KeyMaterial x509KeyMaterial,
             String peerCertificate,
             int localSocksProxyPort,
             String hostname,
             int port,
             String requestPath,
-            String requestBody) throws Utils.ApplicationError {
-        byte[] body;
-        try {
-            body = requestBody.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new Utils.ApplicationError(LOG_TAG, e);
+            CancellationSignal cancellationSignal) throws Utils.ApplicationError {
+        // Offers the binary encoding and compression; older peers ignore them and respond with JSON
+        List<Pair<String,String>> requestHeaders = new ArrayList<Pair<String,String>>();
+        requestHeaders.add(new Pair<String,String>("Accept", Protocol.STATUS_BINARY_MIME_TYPE + ", " + Protocol.STATUS_JSON_MIME_TYPE));
+        requestHeaders.add(new Pair<String,String>("Accept-Encoding", Protocol.STATUS_COMPRESSED_CONTENT_ENCODING));
+        final List<StatusResponse> response = new ArrayList<StatusResponse>(1);
+        makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                null,  // requestParameters
+                null,  // requestBodyMimeType
+                -1,    // requestBodyLength
+                null,  // requestBodyStream
+                null,  // rangeHeader
+                requestHeaders,
+                new ResponseBodyHandler() {
+                    @Override
+                    public void handleResponseBody(String mimeType, boolean compressed, InputStream responseBodyStream) throws Utils.ApplicationError {
+                        response.add(new StatusResponse(StatusCodec.decode(mimeType, responseBodyStream), mimeType, compressed));
+                    }
+                },
+                cancellationSignal);
+        return response.get(0);
+    }
+
+    public static void makeStatusPostRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            byte[] encodedStatus,
+            String mimeType,
+            boolean compressed,
+            CancellationSignal cancellationSignal) throws Utils.ApplicationError {
+        // The status is encoded by the caller (see Data.getEncodedSelfStatus); only send binary
+        // or compressed statuses to peers known to accept them
+        List<Pair<String,String>> requestHeaders = null;
+        if (compressed) {
+            requestHeaders = new ArrayList<Pair<String,String>>();
+            requestHeaders.add(new Pair<String,String>("Content-Encoding", Protocol.STATUS_COMPRESSED_CONTENT_ENCODING));
         }
         makeRequest(
             x509KeyMaterial,
@@ -184,11 +248,27 @@ public class WebClient {
             port,
             requestPath,
             null,  // requestParameters
-            "application/json",
-            body.length,
-            new ByteArrayInputStream(body),
+            mimeType,
+            encodedStatus.length,
+            new ByteArrayInputStream(encodedStatus),
             null,  // rangeHeader
-            null); // responseBodyStream
+            requestHeaders,
+            null,  // responseBodyHandler
+            cancellationSignal);
+    }
+
+    private interface ResponseBodyHandler {
+        public void handleResponseBody(String mimeType, boolean compressed, InputStream responseBodyStream) throws Utils.ApplicationError, IOException;
+    }
+
+    private static ResponseBodyHandler makeCopyResponseBodyHandler(OutputStream responseBodyStream) {
+        final OutputStream finalResponseBodyStream = responseBodyStream;
+        return new ResponseBodyHandler() {
+            @Override
+            public void handleResponseBody(String mimeType, boolean compressed, InputStream responseBodyStream) throws IOException {
+                Utils.copyStream(responseBodyStream, finalResponseBodyStream);
+            }
+        };
     }
 
     private static void makeRequest(
@@ -203,7 +283,11 @@ public class WebClient {
             long requestBodyLength,
             InputStream requestBodyStream,
             Pair<Long, Long> rangeHeader,
-            OutputStream responseBodyStream) throws Utils.ApplicationError {
+            List<Pair<String,String>> requestHeaders,
+            ResponseBodyHandler responseBodyHandler,
+            CancellationSignal cancellationSignal) throws Utils.ApplicationError {
+        // When cancellationSignal is cancelled, the request is aborted: this closes the
+        // connection, so a connect, read or write blocked on it fails immediately.
         HttpRequestBase request = null;
         ClientConnectionManager connectionManager = null;
         try {
@@ -251,14 +335,40 @@ public class WebClient {
                 }
                 request.addHeader("Range", value);
             }
+            if (requestHeaders != null) {
+                for (Pair<String,String> requestHeader : requestHeaders) {
+                    request.addHeader(requestHeader.first, requestHeader.second);
+                }
+            }
+            if (cancellationSignal != null) {
+                final HttpRequestBase finalRequest = request;
+                // Called immediately if already cancelled, so the request fails before connecting
+                cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        finalRequest.abort();
+                    }
+                });
+            }
             HttpResponse response = client.execute(request);
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode != HttpStatus.SC_OK) {
                 throw new Utils.ApplicationError(LOG_TAG, String.format("HTTP request failed with %d", statusCode));
             }
             HttpEntity responseEntity = response.getEntity();
-            if (responseBodyStream != null) {
-                Utils.copyStream(responseEntity.getContent(), responseBodyStream);
+            if (responseBodyHandler != null) {
+                Header contentType = responseEntity.getContentType();
+                Header contentEncoding = responseEntity.getContentEncoding();
+                boolean compressed =
+                        contentEncoding != null && StatusCodec.isCompressedContentEncoding(contentEncoding.getValue());
+                InputStream responseBodyStream = responseEntity.getContent();
+                if (compressed) {
+                    responseBodyStream = new GZIPInputStream(responseBodyStream);
+                }
+                responseBodyHandler.handleResponseBody(
+                        contentType != null ? contentType.getValue() : null,
+                        compressed,
+                        responseBodyStream);
             } else {
                 // Even if the caller doesn't want the content, we need to consume the bytes
                 // (particularly if leaving the socket up in a keep-alive state).
@@ -277,6 +387,9 @@ public class WebClient {
         } catch (IOException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
             if (request != null && !request.isAborted()) {
                 request.abort();
             }
@@ -19,6 +19,8 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
@@ -26,7 +28,9 @@ import java.net.Socket;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSession;
@@ -63,14 +67,15 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         }
 
         public void submitWebRequestTask(Runnable task);
-        public Data.Status handlePullStatusRequest(String friendId) throws Utils.ApplicationError;
+        // Returns the self status, encoded as requested; see StatusCodec
+        public byte[] handlePullStatusRequest(String friendCertificate, String mimeType, boolean compressed) throws Utils.ApplicationError;
         public void handlePushStatusRequest(String friendId, Data.Status status) throws Utils.ApplicationError;
         public DownloadResponse handleDownloadRequest(String friendCertificate, String resourceId, Pair<Long, Long> range) throws Utils.ApplicationError;
     }
 
     private final RequestHandler mRequestHandler;
-    private final X509.KeyMaterial mX509KeyMaterial;
-    private final List<String> mFriendCertificates;
+    private final TransportSecurity.FriendTrustManager mFriendTrustManager;
+    private final SSLContext mSSLContext;
 
     public WebServer(
             RequestHandler requestHandler,
@@ -80,8 +85,8 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         // the system pick any available port for listening.
         super("127.0.0.1", 0);
         mRequestHandler = requestHandler;
-        mX509KeyMaterial = x509KeyMaterial;
-        mFriendCertificates = friendCertificates;
+        mFriendTrustManager = new TransportSecurity.FriendTrustManager(friendCertificates);
+        mSSLContext = TransportSecurity.getSSLContext(x509KeyMaterial, mFriendTrustManager);
         setServerSocketFactory(this);
         setAsyncRunner(this);
     }
@@ -89,13 +94,21 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
     @Override
     public ServerSocket createServerSocket() throws IOException {
         try {
-            SSLServerSocket sslServerSocket = (SSLServerSocket)TransportSecurity.makeServerSocket(mX509KeyMaterial, mFriendCertificates);
+            SSLServerSocket sslServerSocket = (SSLServerSocket)TransportSecurity.makeServerSocket(mSSLContext);
             return sslServerSocket;
         } catch (Utils.ApplicationError e) {
             throw new IOException(e);
         }
     }
 
+    public void updateFriendCertificates(List<String> friendCertificates) throws Utils.ApplicationError {
+        // Applies to new connections without restarting the server. Request handlers
+        // also look up the friend for each request, so open connections from a removed
+        // friend can't make further requests.
+        mFriendTrustManager.setFriendCertificates(friendCertificates);
+        TransportSecurity.invalidateSessions(mSSLContext);
+    }
+
     @Override
     protected int getReadTimeout() {
         return READ_TIMEOUT_MILLISECONDS;
@@ -139,12 +152,23 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
             Method method = session.getMethod();
 
             if (Method.GET.equals(method) && uri.equals(Protocol.PULL_STATUS_REQUEST_PATH)) {
-                Data.Status status = mRequestHandler.handlePullStatusRequest(certificate);
-                if (status == null) {
+                // Binary for peers which accept it, otherwise JSON; likewise for compression
+                String mimeType = StatusCodec.negotiateMimeType(session.getHeaders().get("accept"));
+                boolean compressed = StatusCodec.acceptsCompressedContentEncoding(session.getHeaders().get("accept-encoding"));
+                byte[] encodedStatus = mRequestHandler.handlePullStatusRequest(certificate, mimeType, compressed);
+                if (encodedStatus == null) {
                     // TODO: not currently sharing; serve old status?
                     return new Response(NanoHTTPD.Response.Status.FORBIDDEN, null, "");
                 }
-                return new Response(NanoHTTPD.Response.Status.OK, Protocol.PULL_STATUS_RESPONSE_MIME_TYPE, Json.toJson(status));
+                // Fixed length, so NanoHTTPD sends a content length
+                Response response = new Response(
+                        NanoHTTPD.Response.Status.OK,
+                        mimeType,
+                        new ByteArrayInputStream(encodedStatus));
+                if (compressed) {
+                    response.addHeader("Content-Encoding", Protocol.STATUS_COMPRESSED_CONTENT_ENCODING);
+                }
+                return response;
 
             } else if (Method.GET.equals(method) && uri.equals(Protocol.DOWNLOAD_REQUEST_PATH)) {
                 String resourceId = session.getParms().get(Protocol.DOWNLOAD_REQUEST_RESOURCE_ID_PARAMETER);
@@ -164,7 +188,21 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
 
             } else if (Method.POST.equals(method) && uri.equals(Protocol.PUSH_STATUS_REQUEST_PATH)) {
                 // TODO: PUT more RESTful?
-                Data.Status status = Json.fromJson(new String(readRequestBodyHelper(session)), Data.Status.class);
+                // Parsed as it's read from the socket, without buffering the whole body
+                InputStream requestBodyStream = getRequestBodyStreamHelper(session);
+                Data.Status status;
+                try {
+                    InputStream statusStream = requestBodyStream;
+                    if (StatusCodec.isCompressedContentEncoding(session.getHeaders().get("content-encoding"))) {
+                        // The uncompressed status is held to the same size limit as the request body
+                        statusStream = new MaxLengthInputStream(
+                                new GZIPInputStream(requestBodyStream), Protocol.MAX_POST_REQUEST_BODY_SIZE);
+                    }
+                    status = StatusCodec.decode(session.getHeaders().get("content-type"), statusStream);
+                } finally {
+                    // Consume any unread body bytes, so the keep-alive connection stays in sync
+                    Utils.discardStream(requestBodyStream);
+                }
                 mRequestHandler.handlePushStatusRequest(certificate, status);
                 return new Response(NanoHTTPD.Response.Status.OK, null, "");
             }
@@ -203,7 +241,7 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         return new Pair<Long, Long>(startFrom, endAt);
     }
 
-    private byte[] readRequestBodyHelper(IHTTPSession session) throws IOException, Utils.ApplicationError {
+    private InputStream getRequestBodyStreamHelper(IHTTPSession session) throws Utils.ApplicationError {
         String contentLengthValue = session.getHeaders().get("content-length");
         if (contentLengthValue == null) {
             throw new Utils.ApplicationError(LOG_TAG, "failed to get request content length");
@@ -214,24 +252,108 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         } catch (NumberFormatException e) {
             throw new Utils.ApplicationError(LOG_TAG, "invalid request content length");
         }
-        if (contentLength > Protocol.MAX_POST_REQUEST_BODY_SIZE) {
+        if (contentLength < 0 || contentLength > Protocol.MAX_POST_REQUEST_BODY_SIZE) {
             throw new Utils.ApplicationError(LOG_TAG, "content length too large: " + Integer.toString(contentLength));
         }
-        byte[] buffer = new byte[contentLength];
-        int offset = 0;
-        int remainingLength = contentLength;
-        while (remainingLength > 0) {
-            int readLength = session.getInputStream().read(buffer, offset, remainingLength);
-            if (readLength == -1 || readLength > remainingLength) {
-                throw new Utils.ApplicationError(LOG_TAG,
-                            String.format(
-                                "failed to read POST content: read %d of %d expected bytes",
-                                contentLength - remainingLength,
-                                contentLength));
+        return new RequestBodyInputStream(session.getInputStream(), contentLength);
+    }
+
+    private static class RequestBodyInputStream extends FilterInputStream {
+        // Reads exactly the request body's content length bytes from the connection stream,
+        // then reports end of stream. Closing doesn't close the connection stream.
+
+        private final int mContentLength;
+        private int mRemainingLength;
+
+        public RequestBodyInputStream(InputStream inputStream, int contentLength) {
+            super(inputStream);
+            mContentLength = contentLength;
+            mRemainingLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : (buffer[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemainingLength == 0) {
+                return -1;
+            }
+            int readLength = in.read(buffer, offset, Math.min(length, mRemainingLength));
+            if (readLength == -1) {
+                throw new IOException(
+                        String.format(
+                            "failed to read POST content: read %d of %d expected bytes",
+                            mContentLength - mRemainingLength,
+                            mContentLength));
+            }
+            mRemainingLength -= readLength;
+            return readLength;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            byte[] buffer = new byte[(int)Math.min(length, 4096)];
+            int readLength = read(buffer, 0, buffer.length);
+            return readLength == -1 ? 0 : readLength;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(in.available(), mRemainingLength);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static class MaxLengthInputStream extends FilterInputStream {
+        // Fails reads past the maximum length
+
+        private int mRemainingLength;
+
+        public MaxLengthInputStream(InputStream inputStream, int maxLength) {
+            super(inputStream);
+            mRemainingLength = maxLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : (buffer[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int readLength = in.read(buffer, offset, length);
+            if (readLength > 0) {
+                mRemainingLength -= readLength;
+                if (mRemainingLength < 0) {
+                    throw new IOException("request content too large");
+                }
             }
-            offset += readLength;
-            remainingLength -= readLength;
+            return readLength;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            byte[] buffer = new byte[(int)Math.min(length, 4096)];
+            int readLength = read(buffer, 0, buffer.length);
+            return readLength == -1 ? 0 : readLength;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
         }
-        return buffer;
     }
 }